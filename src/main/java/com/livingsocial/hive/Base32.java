@@ -1,76 +1,247 @@
-/* Adapted from:
- * (PD) 2001 The Bitzi Corporation
- * Please see http://bitzi.com/publicdomain for more info.
- */
-
-package com.livingsocial.hive;
-
-public class Base32 {
-    private static final String base32Chars = "ABCDEFGHIJKLMNOPQRSTUVWXYZ234567";
-    private static final int[] base32Lookup = { 
-	0xFF,0xFF,0x1A,0x1B,0x1C,0x1D,0x1E,0x1F, // '0', '1', '2', '3', '4', '5', '6', '7'
-	0xFF,0xFF,0xFF,0xFF,0xFF,0xFF,0xFF,0xFF, // '8', '9', ':', ';', '<', '=', '>', '?'
-	0xFF,0x00,0x01,0x02,0x03,0x04,0x05,0x06, // '@', 'A', 'B', 'C', 'D', 'E', 'F', 'G'
-	0x07,0x08,0x09,0x0A,0x0B,0x0C,0x0D,0x0E, // 'H', 'I', 'J', 'K', 'L', 'M', 'N', 'O'
-	0x0F,0x10,0x11,0x12,0x13,0x14,0x15,0x16, // 'P', 'Q', 'R', 'S', 'T', 'U', 'V', 'W'
-	0x17,0x18,0x19,0xFF,0xFF,0xFF,0xFF,0xFF, // 'X', 'Y', 'Z', '[', '\', ']', '^', '_'
-	0xFF,0x00,0x01,0x02,0x03,0x04,0x05,0x06, // '`', 'a', 'b', 'c', 'd', 'e', 'f', 'g'
-	0x07,0x08,0x09,0x0A,0x0B,0x0C,0x0D,0x0E, // 'h', 'i', 'j', 'k', 'l', 'm', 'n', 'o'
-	0x0F,0x10,0x11,0x12,0x13,0x14,0x15,0x16, // 'p', 'q', 'r', 's', 't', 'u', 'v', 'w'
-	0x17,0x18,0x19,0xFF,0xFF,0xFF,0xFF,0xFF  // 'x', 'y', 'z', '{', '|', '}', '~', 'DEL'
-    };
-
-    static public byte[] decode(final String base32) {
-        int i, index, lookup, offset, digit;
-        byte[] bytes = new byte[base32.length() * 5 / 8];
-
-        for(i = 0, index = 0, offset = 0; i < base32.length(); i++) {
-            lookup = base32.charAt(i) - '0';
-
-            /* Skip chars outside the lookup table */
-            if ( lookup < 0 || lookup >= base32Lookup.length) {
-                continue;
-	    }
-
-            digit = base32Lookup[lookup];
-
-            /* If this digit is not in the table, ignore it */
-            if (digit == 0xFF) {
-                continue;
-	    }
-
-            if (index <= 3) {
-                index = (index + 5) % 8;
-                if (index == 0) {
-                   bytes[offset] |= digit;
-                   offset++;
-                   if(offset>=bytes.length) break;
-                } else {
-                   bytes[offset] |= digit << (8 - index);
-		}
-            } else {
-                index = (index + 5) % 8;
-                bytes[offset] |= (digit >>> index);
-                offset++;
-
-                if(offset>=bytes.length) break;
-                bytes[offset] |= digit << (8 - index);
-            }
-        }
-	return bytes;
-    }
-
-
-    static public byte[] hexdecode(final String base32hex) {
-	String values = "0123456789ABCDEFGHIJKLMNOPQRSTUV";
-	String hexvalues = "ABCDEFGHIJKLMNOPQRSTUVWXYZ234567";
-	String base32 = "";
-	String base32hexuc = base32hex.toUpperCase();
-	for(int i=0; i<base32hex.length(); i++) {
-	    int index = values.indexOf(base32hexuc.charAt(i));
-	    if(index > -1)
-		base32 += Character.toString(hexvalues.charAt(index));
-	}
-	return decode(base32);
-    }
-}
\ No newline at end of file
+/* Adapted from:
+ * (PD) 2001 The Bitzi Corporation
+ * Please see http://bitzi.com/publicdomain for more info.
+ */
+
+package com.livingsocial.hive;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class Base32 {
+    private static final String base32Chars = "ABCDEFGHIJKLMNOPQRSTUVWXYZ234567";
+    private static final String base32HexChars = "0123456789ABCDEFGHIJKLMNOPQRSTUV";
+    private static final byte[] base32Digits = base32Chars.getBytes();
+    private static final byte[] base32HexDigits = base32HexChars.getBytes();
+
+    // Digit values of every byte in both alphabets, either case: base32 in
+    // the low and base32hex in the high byte, with 0xFF for non-digits
+    private static final int BASE32 = 0;
+    private static final int HEX = 8;
+    private static final int NOT_A_DIGIT = 0xFF;
+    private static final int[] lookup = new int[256];
+    static {
+	Arrays.fill(lookup, NOT_A_DIGIT << HEX | NOT_A_DIGIT << BASE32);
+	for(int i=0; i<32; i++) {
+	    setDigit(base32Chars.charAt(i), BASE32, i);
+	    setDigit(base32HexChars.charAt(i), HEX, i);
+	}
+    }
+
+    private static void setDigit(char c, int alphabet, int value) {
+	for (char ch : new char[] { c, Character.toLowerCase(c) }) {
+	    lookup[ch] = lookup[ch] & ~(0xFF << alphabet) | value << alphabet;
+	}
+    }
+
+    static public byte[] decode(final String base32) {
+        int i, index, c, offset, digit;
+        byte[] bytes = new byte[base32.length() * 5 / 8];
+
+        for(i = 0, index = 0, offset = 0; i < base32.length(); i++) {
+            c = base32.charAt(i);
+
+            /* Skip chars outside the lookup table */
+            if (c >= lookup.length) {
+                continue;
+	    }
+
+            digit = lookup[c] >> BASE32 & 0xFF;
+
+            /* If this digit is not in the table, ignore it */
+            if (digit == NOT_A_DIGIT) {
+                continue;
+	    }
+
+            if (index <= 3) {
+                index = (index + 5) % 8;
+                if (index == 0) {
+                   bytes[offset] |= digit;
+                   offset++;
+                   if(offset>=bytes.length) break;
+                } else {
+                   bytes[offset] |= digit << (8 - index);
+		}
+            } else {
+                index = (index + 5) % 8;
+                bytes[offset] |= (digit >>> index);
+                offset++;
+
+                if(offset>=bytes.length) break;
+                bytes[offset] |= digit << (8 - index);
+            }
+        }
+	return bytes;
+    }
+
+
+    static public byte[] hexdecode(final String base32hex) {
+	String values = "0123456789ABCDEFGHIJKLMNOPQRSTUV";
+	String hexvalues = "ABCDEFGHIJKLMNOPQRSTUVWXYZ234567";
+	String base32 = "";
+	String base32hexuc = base32hex.toUpperCase();
+	for(int i=0; i<base32hex.length(); i++) {
+	    int index = values.indexOf(base32hexuc.charAt(i));
+	    if(index > -1)
+		base32 += Character.toString(hexvalues.charAt(index));
+	}
+	return decode(base32);
+    }
+
+    /**
+     * Most bytes length base32 digits decode to
+     */
+    static public int decodedLength(int length) {
+	return (int) (length * 5L / 8);
+    }
+
+    /**
+     * Base32 digits length bytes encode to, without padding
+     */
+    static public int encodedLength(int length) {
+	return (int) ((length * 8L + 4) / 5);
+    }
+
+    /**
+     * Decodes the base32 digits of length bytes from start into dest at
+     * destStart, skipping anything else like decode(String) does.  dest needs
+     * room for decodedLength(length) bytes.  Returns the number of bytes
+     * written.
+     */
+    static public int decode(final byte[] src, int start, int length, byte[] dest, int destStart) {
+	return decode(src, start, length, dest, destStart, BASE32);
+    }
+
+    /**
+     * Same as decode(byte[], int, int, byte[], int) for the base32hex
+     * digits '0'-'9' and 'A'-'V'.  Bytes outside ascii are skipped, unlike
+     * hexdecode(String), which upper cases the whole String first.
+     */
+    static public int hexdecode(final byte[] src, int start, int length, byte[] dest, int destStart) {
+	return decode(src, start, length, dest, destStart, HEX);
+    }
+
+    /**
+     * Decodes src from its position to its limit into dest from its position,
+     * moving both positions past what was used.  Returns the number of bytes
+     * written.
+     */
+    static public int decode(ByteBuffer src, ByteBuffer dest) {
+	return decode(src, dest, BASE32);
+    }
+
+    static public int hexdecode(ByteBuffer src, ByteBuffer dest) {
+	return decode(src, dest, HEX);
+    }
+
+    /**
+     * Encodes length bytes from start as upper case base32 digits into dest
+     * at destStart, without padding.  dest needs room for
+     * encodedLength(length) bytes.  Returns the number of digits written.
+     */
+    static public int encode(final byte[] src, int start, int length, byte[] dest, int destStart) {
+	return encode(src, start, length, dest, destStart, base32Digits);
+    }
+
+    static public int hexencode(final byte[] src, int start, int length, byte[] dest, int destStart) {
+	return encode(src, start, length, dest, destStart, base32HexDigits);
+    }
+
+    /**
+     * Encodes src from its position to its limit into dest from its position,
+     * moving both positions past what was used.  Returns the number of digits
+     * written.
+     */
+    static public int encode(ByteBuffer src, ByteBuffer dest) {
+	return encode(src, dest, base32Digits);
+    }
+
+    static public int hexencode(ByteBuffer src, ByteBuffer dest) {
+	return encode(src, dest, base32HexDigits);
+    }
+
+    private static int decode(byte[] src, int start, int length, byte[] dest, int destStart, int alphabet) {
+	int buffer = 0, bits = 0, offset = destStart;
+	for(int i = start; i < start + length; i++) {
+	    int digit = lookup[src[i] & 0xFF] >> alphabet & 0xFF;
+	    if (digit == NOT_A_DIGIT) {
+		continue;
+	    }
+	    buffer = (buffer << 5) | digit;
+	    bits += 5;
+	    if (bits >= 8) {
+		bits -= 8;
+		dest[offset++] = (byte) (buffer >>> bits);
+	    }
+	}
+	return offset - destStart;
+    }
+
+    private static int decode(ByteBuffer src, ByteBuffer dest, int alphabet) {
+	int length = src.remaining();
+	if (src.hasArray() && dest.hasArray() && dest.remaining() >= decodedLength(length)) {
+	    int written = decode(src.array(), src.arrayOffset() + src.position(), length,
+				 dest.array(), dest.arrayOffset() + dest.position(), alphabet);
+	    src.position(src.limit());
+	    dest.position(dest.position() + written);
+	    return written;
+	}
+	int buffer = 0, bits = 0, written = 0;
+	while (src.hasRemaining()) {
+	    int digit = lookup[src.get() & 0xFF] >> alphabet & 0xFF;
+	    if (digit == NOT_A_DIGIT) {
+		continue;
+	    }
+	    buffer = (buffer << 5) | digit;
+	    bits += 5;
+	    if (bits >= 8) {
+		bits -= 8;
+		dest.put((byte) (buffer >>> bits));
+		written++;
+	    }
+	}
+	return written;
+    }
+
+    private static int encode(byte[] src, int start, int length, byte[] dest, int destStart, byte[] digits) {
+	int buffer = 0, bits = 0, offset = destStart;
+	for(int i = start; i < start + length; i++) {
+	    buffer = (buffer << 8) | (src[i] & 0xFF);
+	    bits += 8;
+	    while (bits >= 5) {
+		bits -= 5;
+		dest[offset++] = digits[(buffer >>> bits) & 0x1F];
+	    }
+	}
+	if (bits > 0) {
+	    dest[offset++] = digits[(buffer << (5 - bits)) & 0x1F];
+	}
+	return offset - destStart;
+    }
+
+    private static int encode(ByteBuffer src, ByteBuffer dest, byte[] digits) {
+	int length = src.remaining();
+	if (src.hasArray() && dest.hasArray() && dest.remaining() >= encodedLength(length)) {
+	    int written = encode(src.array(), src.arrayOffset() + src.position(), length,
+				 dest.array(), dest.arrayOffset() + dest.position(), digits);
+	    src.position(src.limit());
+	    dest.position(dest.position() + written);
+	    return written;
+	}
+	int buffer = 0, bits = 0, written = 0;
+	while (src.hasRemaining()) {
+	    buffer = (buffer << 8) | (src.get() & 0xFF);
+	    bits += 8;
+	    while (bits >= 5) {
+		bits -= 5;
+		dest.put(digits[(buffer >>> bits) & 0x1F]);
+		written++;
+	    }
+	}
+	if (bits > 0) {
+	    dest.put(digits[(buffer << (5 - bits)) & 0x1F]);
+	    written++;
+	}
+	return written;
+    }
+}
@@ -0,0 +1,205 @@
+package com.livingsocial.hive;
+
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+
+/**
+ * Calendar fields by epoch day (days since 1970-01-01 on the local calendar,
+ * see Utils.stringToEpochDay).  Days from 1900 through 2100 are precomputed
+ * into one packed char each, about 145KB so the table fits in L2 next to the
+ * rows being processed, and looking up a field is an array read and a shift.
+ * The year comes from a small table of year starts and the day of week from
+ * the epoch day itself.  Days outside that range are worked out with a
+ * GregorianCalendar, which matches what the date UDFs did before, Julian
+ * calendar dates included.
+ *
+ * Fields follow java.util.Calendar: day of week is 1 for Sunday through 7
+ * for Saturday, months are 1-12.  ISO weeks start on Monday and week 1 is
+ * the first week with at least 4 days in the new year.
+ */
+public class CalendarTable {
+
+    private CalendarTable() {}
+
+    public static final int FIRST_YEAR = 1900;
+    public static final int LAST_YEAR = 2100;
+
+    public static final long FIRST_DAY = Utils.dateToEpochDay(FIRST_YEAR, 1, 1);
+    public static final long LAST_DAY = Utils.dateToEpochDay(LAST_YEAR, 12, 31);
+
+    // Layout of the packed days, the ISO year follows from the month and week
+    private static final int DAY_SHIFT = 0;         // 5 bits, 1-31
+    private static final int MONTH_SHIFT = 5;       // 4 bits, 1-12
+    private static final int ISO_WEEK_SHIFT = 9;    // 6 bits, 1-53
+
+    private static final int[] DAYS_BEFORE_MONTH = { 0, 0, 31, 59, 90, 120, 151, 181, 212, 243, 273, 304, 334 };
+
+    private static final char[] TABLE = new char[(int) (LAST_DAY - FIRST_DAY + 1)];
+    // Table index of January 1st of each year, and of the year after the last
+    private static final int[] YEAR_START = new int[LAST_YEAR - FIRST_YEAR + 2];
+    static {
+        int year = FIRST_YEAR;
+        int month = 1;
+        int day = 1;
+        // 1900-01-01 was a Monday
+        int isoDayOfWeek = 1;
+        for (int i = 0; i < TABLE.length; i++) {
+            int dayOfYear = dayOfYear(year, month, day);
+            if (dayOfYear == 1) {
+                YEAR_START[year - FIRST_YEAR] = i;
+            }
+            int isoWeek = (dayOfYear - isoDayOfWeek + 10) / 7;
+            if (isoWeek < 1) {
+                isoWeek = isoWeeks(year - 1);
+            } else if (isoWeek > isoWeeks(year)) {
+                isoWeek = 1;
+            }
+
+            TABLE[i] = (char) (day << DAY_SHIFT
+                | month << MONTH_SHIFT
+                | isoWeek << ISO_WEEK_SHIFT);
+
+            isoDayOfWeek = isoDayOfWeek % 7 + 1;
+            if (++day > daysInMonth(year, month)) {
+                day = 1;
+                if (++month > 12) {
+                    month = 1;
+                    year++;
+                }
+            }
+        }
+        YEAR_START[YEAR_START.length - 1] = TABLE.length;
+    }
+
+    // For days outside of the table
+    private static final ThreadLocal<GregorianCalendar> CALENDAR = new ThreadLocal<GregorianCalendar>() {
+        @Override
+        protected GregorianCalendar initialValue() {
+            GregorianCalendar calendar = new GregorianCalendar(TimeZone.getTimeZone("GMT"));
+            calendar.setFirstDayOfWeek(Calendar.MONDAY);
+            calendar.setMinimalDaysInFirstWeek(4);
+            return calendar;
+        }
+    };
+
+    public static boolean contains(long epochDay) {
+        return epochDay >= FIRST_DAY && epochDay <= LAST_DAY;
+    }
+
+    public static int year(long epochDay) {
+        if (contains(epochDay)) {
+            return tableYear((int) (epochDay - FIRST_DAY));
+        }
+        return calendar(epochDay).get(Calendar.YEAR);
+    }
+
+    public static int month(long epochDay) {
+        if (contains(epochDay)) {
+            return field(epochDay, MONTH_SHIFT, 0xf);
+        }
+        return calendar(epochDay).get(Calendar.MONTH) + 1;
+    }
+
+    public static int dayOfMonth(long epochDay) {
+        if (contains(epochDay)) {
+            return field(epochDay, DAY_SHIFT, 0x1f);
+        }
+        return calendar(epochDay).get(Calendar.DAY_OF_MONTH);
+    }
+
+    public static int quarter(long epochDay) {
+        return (month(epochDay) + 2) / 3;
+    }
+
+    public static int dayOfYear(long epochDay) {
+        if (contains(epochDay)) {
+            int i = (int) (epochDay - FIRST_DAY);
+            return i - YEAR_START[tableYear(i) - FIRST_YEAR] + 1;
+        }
+        return calendar(epochDay).get(Calendar.DAY_OF_YEAR);
+    }
+
+    /**
+     * 1 for Sunday through 7 for Saturday
+     */
+    public static int dayOfWeek(long epochDay) {
+        if (contains(epochDay)) {
+            // 1970-01-01 was a Thursday
+            return (int) ((epochDay % 7 + 7 + 4) % 7) + 1;
+        }
+        return calendar(epochDay).get(Calendar.DAY_OF_WEEK);
+    }
+
+    public static int isoWeek(long epochDay) {
+        if (contains(epochDay)) {
+            return field(epochDay, ISO_WEEK_SHIFT, 0x3f);
+        }
+        return calendar(epochDay).get(Calendar.WEEK_OF_YEAR);
+    }
+
+    /**
+     * The year the ISO week belongs to, the year of the week's Thursday
+     */
+    public static int isoYear(long epochDay) {
+        if (contains(epochDay)) {
+            int i = (int) (epochDay - FIRST_DAY);
+            int packed = TABLE[i];
+            int month = (packed >>> MONTH_SHIFT) & 0xf;
+            int isoWeek = (packed >>> ISO_WEEK_SHIFT) & 0x3f;
+            // Early January days in the last week of the year before, late December ones in week 1
+            int year = tableYear(i);
+            if (month == 1 && isoWeek > 50) {
+                return year - 1;
+            }
+            return month == 12 && isoWeek == 1 ? year + 1 : year;
+        }
+        // Monday is 2, Sunday 1 belongs to the week before
+        int dayOfWeek = calendar(epochDay).get(Calendar.DAY_OF_WEEK);
+        int toThursday = dayOfWeek == Calendar.SUNDAY ? -3 : Calendar.THURSDAY - dayOfWeek;
+        return calendar(epochDay + toThursday).get(Calendar.YEAR);
+    }
+
+    private static int field(long epochDay, int shift, int mask) {
+        return (TABLE[(int) (epochDay - FIRST_DAY)] >>> shift) & mask;
+    }
+
+    // Year of the table index, estimated from the average Gregorian year and corrected
+    private static int tableYear(int i) {
+        int year = Math.min(i * 400 / 146097, YEAR_START.length - 2);
+        while (YEAR_START[year] > i) {
+            year--;
+        }
+        while (YEAR_START[year + 1] <= i) {
+            year++;
+        }
+        return year + FIRST_YEAR;
+    }
+
+    private static Calendar calendar(long epochDay) {
+        GregorianCalendar calendar = CALENDAR.get();
+        calendar.setTimeInMillis(epochDay * 24 * 60 * 60 * 1000L);
+        return calendar;
+    }
+
+    private static boolean isLeapYear(int year) {
+        return (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+    }
+
+    private static int daysInMonth(int year, int month) {
+        if (month == 2) {
+            return isLeapYear(year) ? 29 : 28;
+        }
+        return month == 4 || month == 6 || month == 9 || month == 11 ? 30 : 31;
+    }
+
+    private static int dayOfYear(int year, int month, int day) {
+        return DAYS_BEFORE_MONTH[month] + day + (month > 2 && isLeapYear(year) ? 1 : 0);
+    }
+
+    // Years with 53 ISO weeks start on a Thursday, or on a Wednesday in leap years
+    private static int isoWeeks(int year) {
+        int jan1 = (int) ((Utils.dateToEpochDay(year, 1, 1) % 7 + 7 + 3) % 7) + 1;  // 1 Monday - 7 Sunday
+        return jan1 == 4 || (jan1 == 3 && isLeapYear(year)) ? 53 : 52;
+    }
+}
@@ -0,0 +1,193 @@
+package com.livingsocial.hive;
+
+/**
+ * Non-cryptographic hashes over byte ranges, for bucketing and dedup keys
+ * where md5 and sha1 are more than is needed.  Both read the input straight
+ * from the array and produce the same values as the reference
+ * implementations: XXH64 and MurmurHash3_x64_128 (as Guava's
+ * Hashing.murmur3_128 lays out its bytes and extends its int seed, so
+ * negative seeds differ from the reference C code's unsigned one).
+ */
+public class HashFunctions {
+
+    private static final long PRIME64_1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME64_2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME64_3 = 0x165667B19E3779F9L;
+    private static final long PRIME64_4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME64_5 = 0x27D4EB2F165667C5L;
+
+    private static final long C1 = 0x87C37B91114253D5L;
+    private static final long C2 = 0x4CF5AD432745937FL;
+
+    /**
+     * XXH64 of length bytes starting at offset
+     */
+    public static long xxh64(byte[] bytes, int offset, int length, long seed) {
+        int end = offset + length;
+        int i = offset;
+        long hash;
+        if (length >= 32) {
+            long v1 = seed + PRIME64_1 + PRIME64_2;
+            long v2 = seed + PRIME64_2;
+            long v3 = seed;
+            long v4 = seed - PRIME64_1;
+            int limit = end - 32;
+            do {
+                v1 = xxhRound(v1, readLong(bytes, i));
+                v2 = xxhRound(v2, readLong(bytes, i + 8));
+                v3 = xxhRound(v3, readLong(bytes, i + 16));
+                v4 = xxhRound(v4, readLong(bytes, i + 24));
+                i += 32;
+            } while (i <= limit);
+            hash = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            hash = xxhMerge(hash, v1);
+            hash = xxhMerge(hash, v2);
+            hash = xxhMerge(hash, v3);
+            hash = xxhMerge(hash, v4);
+        } else {
+            hash = seed + PRIME64_5;
+        }
+        hash += length;
+
+        for (; i + 8 <= end; i += 8) {
+            hash ^= xxhRound(0, readLong(bytes, i));
+            hash = Long.rotateLeft(hash, 27) * PRIME64_1 + PRIME64_4;
+        }
+        if (i + 4 <= end) {
+            hash ^= (readInt(bytes, i) & 0xFFFFFFFFL) * PRIME64_1;
+            hash = Long.rotateLeft(hash, 23) * PRIME64_2 + PRIME64_3;
+            i += 4;
+        }
+        for (; i < end; i++) {
+            hash ^= (bytes[i] & 0xFFL) * PRIME64_5;
+            hash = Long.rotateLeft(hash, 11) * PRIME64_1;
+        }
+
+        hash ^= hash >>> 33;
+        hash *= PRIME64_2;
+        hash ^= hash >>> 29;
+        hash *= PRIME64_3;
+        hash ^= hash >>> 32;
+        return hash;
+    }
+
+    /**
+     * MurmurHash3_x64_128 of length bytes starting at offset, written as 16
+     * bytes into out starting at outOffset
+     */
+    public static void murmur3_128(byte[] bytes, int offset, int length, int seed, byte[] out, int outOffset) {
+        long h1 = seed;
+        long h2 = h1;
+        int end = offset + length;
+        int i = offset;
+        for (; i + 16 <= end; i += 16) {
+            h1 ^= mixK1(readLong(bytes, i));
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52DCE729;
+
+            h2 ^= mixK2(readLong(bytes, i + 8));
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495AB5;
+        }
+
+        long k1 = 0;
+        long k2 = 0;
+        switch (end - i) {
+        case 15: k2 ^= (bytes[i + 14] & 0xFFL) << 48;
+        case 14: k2 ^= (bytes[i + 13] & 0xFFL) << 40;
+        case 13: k2 ^= (bytes[i + 12] & 0xFFL) << 32;
+        case 12: k2 ^= (bytes[i + 11] & 0xFFL) << 24;
+        case 11: k2 ^= (bytes[i + 10] & 0xFFL) << 16;
+        case 10: k2 ^= (bytes[i + 9] & 0xFFL) << 8;
+        case 9: k2 ^= bytes[i + 8] & 0xFFL;
+        case 8: k1 ^= readLong(bytes, i);
+            break;
+        case 7: k1 ^= (bytes[i + 6] & 0xFFL) << 48;
+        case 6: k1 ^= (bytes[i + 5] & 0xFFL) << 40;
+        case 5: k1 ^= (bytes[i + 4] & 0xFFL) << 32;
+        case 4: k1 ^= (bytes[i + 3] & 0xFFL) << 24;
+        case 3: k1 ^= (bytes[i + 2] & 0xFFL) << 16;
+        case 2: k1 ^= (bytes[i + 1] & 0xFFL) << 8;
+        case 1: k1 ^= bytes[i] & 0xFFL;
+            break;
+        default:
+            break;
+        }
+        h1 ^= mixK1(k1);
+        h2 ^= mixK2(k2);
+
+        h1 ^= length;
+        h2 ^= length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix64(h1);
+        h2 = fmix64(h2);
+        h1 += h2;
+        h2 += h1;
+
+        writeLong(out, outOffset, h1);
+        writeLong(out, outOffset + 8, h2);
+    }
+
+    /**
+     * Little endian long at offset, the byte order both hashes read in
+     */
+    public static long readLong(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFFL)
+            | (bytes[offset + 1] & 0xFFL) << 8
+            | (bytes[offset + 2] & 0xFFL) << 16
+            | (bytes[offset + 3] & 0xFFL) << 24
+            | (bytes[offset + 4] & 0xFFL) << 32
+            | (bytes[offset + 5] & 0xFFL) << 40
+            | (bytes[offset + 6] & 0xFFL) << 48
+            | (bytes[offset + 7] & 0xFFL) << 56;
+    }
+
+    public static void writeLong(byte[] bytes, int offset, long value) {
+        for (int i = 0; i < 8; i++) {
+            bytes[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF)
+            | (bytes[offset + 1] & 0xFF) << 8
+            | (bytes[offset + 2] & 0xFF) << 16
+            | (bytes[offset + 3] & 0xFF) << 24;
+    }
+
+    private static long xxhRound(long acc, long input) {
+        acc += input * PRIME64_2;
+        acc = Long.rotateLeft(acc, 31);
+        return acc * PRIME64_1;
+    }
+
+    private static long xxhMerge(long hash, long v) {
+        hash ^= xxhRound(0, v);
+        return hash * PRIME64_1 + PRIME64_4;
+    }
+
+    private static long mixK1(long k1) {
+        k1 *= C1;
+        k1 = Long.rotateLeft(k1, 31);
+        return k1 * C2;
+    }
+
+    private static long mixK2(long k2) {
+        k2 *= C2;
+        k2 = Long.rotateLeft(k2, 33);
+        return k2 * C1;
+    }
+
+    private static long fmix64(long k) {
+        k ^= k >>> 33;
+        k *= 0xFF51AFD7ED558CCDL;
+        k ^= k >>> 33;
+        k *= 0xC4CEB9FE1A85EC53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
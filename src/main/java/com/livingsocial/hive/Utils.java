@@ -1,15 +1,312 @@
 package com.livingsocial.hive;
 
+import java.nio.charset.Charset;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.hadoop.io.Text;
 
 
 public class Utils {
 
     private Utils() {}
-    
+
+    private static final Charset UTF8 = Charset.forName("UTF8");
+
+    private static final long MILLIS_PER_DAY = 24 * 60 * 60 * 1000L;
+
+    // The zone SimpleDateFormat would parse in, tasks don't change the default zone
+    private static final TimeZone ZONE = TimeZone.getDefault();
+
+    // Offsets of recently seen local days without an offset change near them,
+    // the epoch day in the high and the offset in the low 32 bits
+    private static final int OFFSET_CACHE_SIZE = 1024;
+    private static final AtomicLongArray DAY_OFFSETS = new AtomicLongArray(OFFSET_CACHE_SIZE);
+    static {
+        for (int i = 0; i < OFFSET_CACHE_SIZE; i++) {
+            DAY_OFFSETS.set(i, (long) Integer.MIN_VALUE << 32);
+        }
+    }
+
     // Returns -1 if date can't be parsed
     public static long stringToTimestamp(String date) {
+        // yyyy-MM-dd or yyyy-MM-dd HH:mm:ss, anything after that is ignored as SimpleDateFormat does
+        int length = date.length();
+        boolean hasTime = date.indexOf(' ') != -1;
+        int end = hasTime ? 19 : 10;
+        if (length >= end && (length == end || !isDigit(date.charAt(end)))
+            && date.charAt(4) == '-' && date.charAt(7) == '-' && (!hasTime || (date.charAt(10) == ' ' && date.charAt(13) == ':' && date.charAt(16) == ':'))) {
+            int year = digits(date, 0, 4);
+            int month = digits(date, 5, 2);
+            int day = digits(date, 8, 2);
+            int hour = hasTime ? digits(date, 11, 2) : 0;
+            int minute = hasTime ? digits(date, 14, 2) : 0;
+            int second = hasTime ? digits(date, 17, 2) : 0;
+            if (year >= 1583 && (month | day | hour | minute | second) >= 0) {
+                return localTimestamp(year, month, day, hour * 3600 + minute * 60 + second);
+            }
+        }
+        return parseTimestamp(date);
+    }
+
+    public static long stringToTimestamp(Text date) {
+        return stringToTimestamp(date.getBytes(), 0, date.getLength());
+    }
+
+    /**
+     * stringToTimestamp for UTF-8 bytes, the usual date formats are read
+     * straight from the bytes without creating any objects
+     */
+    public static long stringToTimestamp(byte[] bytes, int start, int length) {
+        boolean hasTime = false;
+        for (int i = start; i < start + length; i++) {
+            if (bytes[i] == ' ') {
+                hasTime = true;
+                break;
+            }
+        }
+        int end = hasTime ? 19 : 10;
+        if (length >= end && (length == end || !isDigit(bytes[start + end]))) {
+            long timestamp = canonicalTimestamp(bytes, start, end);
+            if (timestamp != NO_TIMESTAMP) {
+                return timestamp;
+            }
+        }
+        return parseTimestamp(new String(bytes, start, length, UTF8));
+    }
+
+    // Returned by canonicalTimestamp for anything it doesn't read
+    public static final long NO_TIMESTAMP = Long.MIN_VALUE;
+
+    /**
+     * Seconds since the epoch of exactly a 'yyyy-MM-dd' (length 10) or
+     * 'yyyy-MM-dd HH:mm:ss' (length 19) local time, the same a lenient
+     * SimpleDateFormat parses it to, or NO_TIMESTAMP for anything that would
+     * need SimpleDateFormat.  Callers check what follows the date themselves.
+     */
+    public static long canonicalTimestamp(byte[] bytes, int start, int length) {
+        return readCanonical(bytes, start, length, true);
+    }
+
+    /**
+     * canonicalTimestamp for a UTC rather than a local time
+     */
+    public static long canonicalUtcTimestamp(byte[] bytes, int start, int length) {
+        return readCanonical(bytes, start, length, false);
+    }
+
+    private static long readCanonical(byte[] bytes, int start, int length, boolean local) {
+        boolean hasTime = length == 19;
+        if ((length != 10 && !hasTime) || bytes[start + 4] != '-' || bytes[start + 7] != '-'
+            || (hasTime && (bytes[start + 10] != ' ' || bytes[start + 13] != ':' || bytes[start + 16] != ':'))) {
+            return NO_TIMESTAMP;
+        }
+        int year = digits(bytes, start, 4);
+        int month = digits(bytes, start + 5, 2);
+        int day = digits(bytes, start + 8, 2);
+        int hour = hasTime ? digits(bytes, start + 11, 2) : 0;
+        int minute = hasTime ? digits(bytes, start + 14, 2) : 0;
+        int second = hasTime ? digits(bytes, start + 17, 2) : 0;
+        if (year >= 1583 && (month | day | hour | minute | second) >= 0) {
+            int secondOfDay = hour * 3600 + minute * 60 + second;
+            return local ? localTimestamp(year, month, day, secondOfDay) : dateToEpochDay(year, month, day) * 86400 + secondOfDay;
+        }
+        return NO_TIMESTAMP;
+    }
+
+    // Returned by compareTimestamps when the strings have to be parsed to be compared
+    public static final int NOT_COMPARABLE = Integer.MIN_VALUE;
+
+    /**
+     * Compares two dates the way comparing their stringToTimestamp values
+     * would, -1, 0 or 1, but without parsing them.  That works for valid
+     * 'yyyy-MM-dd' and 'yyyy-MM-dd HH:mm:ss' strings, where a missing time is
+     * midnight, on days without an offset change around them: ISO strings sort
+     * like the times they stand for.  Anything else returns NOT_COMPARABLE.
+     */
+    public static int compareTimestamps(byte[] a, int aStart, int aLength, byte[] b, int bStart, int bLength) {
+        if (!isPlainLocalTime(a, aStart, aLength) || !isPlainLocalTime(b, bStart, bLength)) {
+            return NOT_COMPARABLE;
+        }
+        for (int i = 0; i < 19; i++) {
+            int ca = i < aLength ? a[aStart + i] : MIDNIGHT[i];
+            int cb = i < bLength ? b[bStart + i] : MIDNIGHT[i];
+            if (ca != cb) {
+                return ca < cb ? -1 : 1;
+            }
+        }
+        return 0;
+    }
+
+    private static final byte[] MIDNIGHT = "0000-00-00 00:00:00".getBytes(UTF8);
+
+    // A valid canonical date or date time on a day with a steady offset
+    private static boolean isPlainLocalTime(byte[] bytes, int start, int length) {
+        if ((length != 10 && length != 19) || bytes[start + 4] != '-' || bytes[start + 7] != '-') {
+            return false;
+        }
+        int year = digits(bytes, start, 4);
+        int month = digits(bytes, start + 5, 2);
+        int day = digits(bytes, start + 8, 2);
+        if (year < 1583 || month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month)) {
+            return false;
+        }
+        if (length == 19) {
+            if (bytes[start + 10] != ' ' || bytes[start + 13] != ':' || bytes[start + 16] != ':') {
+                return false;
+            }
+            int hour = digits(bytes, start + 11, 2);
+            int minute = digits(bytes, start + 14, 2);
+            int second = digits(bytes, start + 17, 2);
+            if (hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59) {
+                return false;
+            }
+        }
+        // Wall clock times only sort like instants while the offset stays the
+        // same; days further apart differ by more than any offset change
+        return dayOffset(dateToEpochDay(year, month, day)) != NO_OFFSET;
+    }
+
+    private static int daysInMonth(int year, int month) {
+        if (month == 2) {
+            return (year % 4 == 0 && year % 100 != 0) || year % 400 == 0 ? 29 : 28;
+        }
+        return month == 4 || month == 6 || month == 9 || month == 11 ? 30 : 31;
+    }
+
+    // Returned by stringToEpochDay for strings that aren't dates
+    public static final long NO_DATE = Long.MIN_VALUE;
+
+    /**
+     * The local day a "yyyy-MM-dd" SimpleDateFormat parses the string to, in
+     * days since 1970-01-01 (see CalendarTable), or NO_DATE if it can't be
+     * parsed.  Anything after the date is ignored.
+     */
+    public static long stringToEpochDay(String date) {
+        int length = date.length();
+        if (length >= 10 && (length == 10 || !isDigit(date.charAt(10))) && date.charAt(4) == '-' && date.charAt(7) == '-') {
+            int year = digits(date, 0, 4);
+            int month = digits(date, 5, 2);
+            int day = digits(date, 8, 2);
+            if (year >= 1583 && (month | day) >= 0) {
+                return localEpochDay(year, month, day);
+            }
+        }
+        return parseEpochDay(date);
+    }
+
+    public static long stringToEpochDay(Text date) {
+        return stringToEpochDay(date.getBytes(), 0, date.getLength());
+    }
+
+    public static long stringToEpochDay(byte[] bytes, int start, int length) {
+        if (length >= 10 && (length == 10 || !isDigit(bytes[start + 10])) && bytes[start + 4] == '-' && bytes[start + 7] == '-') {
+            int year = digits(bytes, start, 4);
+            int month = digits(bytes, start + 5, 2);
+            int day = digits(bytes, start + 8, 2);
+            if (year >= 1583 && (month | day) >= 0) {
+                return localEpochDay(year, month, day);
+            }
+        }
+        return parseEpochDay(new String(bytes, start, length, UTF8));
+    }
+
+    private static long localEpochDay(int year, int month, int day) {
+        long epochDay = dateToEpochDay(year, month, day);
+        if (dayOffset(epochDay) != NO_OFFSET) {
+            return epochDay;
+        }
+        // Midnight might not exist on days the offset changes
+        return millisToEpochDay(localTimestamp(year, month, day, 0) * 1000);
+    }
+
+    private static long parseEpochDay(String date) {
+        try {
+            return millisToEpochDay((new SimpleDateFormat("yyyy-MM-dd")).parse(date).getTime());
+        } catch(ParseException pe) {
+            return NO_DATE;
+        }
+    }
+
+    // Local day of an instant
+    private static long millisToEpochDay(long millis) {
+        return floorDiv(millis + ZONE.getOffset(millis), MILLIS_PER_DAY);
+    }
+
+    /**
+     * Days since 1970-01-01 of a proleptic Gregorian date.  Months and days
+     * out of range roll over into the next or previous ones, like a lenient
+     * Calendar does.
+     */
+    public static long dateToEpochDay(long year, long month, long day) {
+        // Normalize the month to 1-12, moving the overflow into the year
+        long m = month - 1;
+        year += floorDiv(m, 12);
+        m = m - floorDiv(m, 12) * 12 + 1;
+
+        // Days from civil, with years starting in March so the leap day comes last
+        long y = m <= 2 ? year - 1 : year;
+        long era = floorDiv(y, 400);
+        long yoe = y - era * 400;
+        long doy = (153 * (m > 2 ? m - 3 : m + 9) + 2) / 5;
+        long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        return era * 146097 + doe - 719468 + (day - 1);
+    }
+
+    /**
+     * Seconds since the epoch of a wall clock time in the default time zone,
+     * resolving skipped and repeated times the same way java.util.Calendar does
+     */
+    private static long localTimestamp(int year, int month, int day, int secondOfDay) {
+        long epochDay = dateToEpochDay(year, month, day) + secondOfDay / 86400;
+        long wall = epochDay * MILLIS_PER_DAY + (secondOfDay % 86400) * 1000L;
+
+        int offset = dayOffset(epochDay);
+        if (offset == NO_OFFSET) {
+            offset = offsetForWall(wall);
+        }
+        return (wall - offset) / 1000;
+    }
+
+    private static final int NO_OFFSET = Integer.MIN_VALUE;
+
+    /**
+     * Offset of the local day, or NO_OFFSET if the offset changes around it
+     */
+    private static int dayOffset(long epochDay) {
+        int slot = (int) (epochDay & (OFFSET_CACHE_SIZE - 1));
+        long cached = DAY_OFFSETS.get(slot);
+        if ((cached >> 32) == epochDay) {
+            return (int) cached;
+        }
+
+        long dayStart = epochDay * MILLIS_PER_DAY;
+        int before = ZONE.getOffset(dayStart - MILLIS_PER_DAY);
+        int after = ZONE.getOffset(dayStart + 2 * MILLIS_PER_DAY);
+        if (before != after) {
+            return NO_OFFSET;
+        }
+        DAY_OFFSETS.set(slot, (epochDay << 32) | (before & 0xffffffffL));
+        return before;
+    }
+
+    /**
+     * Offset for a wall clock time near an offset change.  Times that are
+     * skipped count in the old offset and repeated times in the new one.
+     */
+    private static int offsetForWall(long wall) {
+        int before = ZONE.getOffset(wall - MILLIS_PER_DAY);
+        int after = ZONE.getOffset(wall + MILLIS_PER_DAY);
+        if (before == after) {
+            return before;
+        }
+        return ZONE.getOffset(wall - after) == after ? after : before;
+    }
+
+    // The exact SimpleDateFormat behavior, for everything the fast path doesn't handle
+    private static long parseTimestamp(String date) {
 	long time = -1L;
 	if(date.indexOf(" ") == -1) {
 	    try {
@@ -22,4 +319,38 @@ public class Utils {
 	}
 	return time;
     }
+
+    private static long floorDiv(long x, long y) {
+        long q = x / y;
+        return (x % y != 0 && ((x ^ y) < 0)) ? q - 1 : q;
+    }
+
+    private static boolean isDigit(int c) {
+        return c >= '0' && c <= '9';
+    }
+
+    // Value of count ascii digits, or -1 if they aren't all digits
+    private static int digits(String s, int start, int count) {
+        int value = 0;
+        for (int i = start; i < start + count; i++) {
+            char c = s.charAt(i);
+            if (!isDigit(c)) {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private static int digits(byte[] bytes, int start, int count) {
+        int value = 0;
+        for (int i = start; i < start + count; i++) {
+            byte c = bytes[i];
+            if (!isDigit(c)) {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
 }
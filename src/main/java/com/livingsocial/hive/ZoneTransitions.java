@@ -0,0 +1,100 @@
+package com.livingsocial.hive;
+
+import java.util.Arrays;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A time zone's offset changes from 1900 through 2100 as sorted arrays, so
+ * the offset of an instant is a binary search instead of a trip through
+ * TimeZone/Calendar.  Tables are built on first use of a zone and shared by
+ * the whole JVM.  Instants outside that range ask the TimeZone.
+ */
+public class ZoneTransitions {
+
+    private static final long FIRST_MILLIS = Utils.dateToEpochDay(CalendarTable.FIRST_YEAR, 1, 1) * 86400000L;
+    private static final long LAST_MILLIS = Utils.dateToEpochDay(CalendarTable.LAST_YEAR + 1, 1, 1) * 86400000L;
+
+    // Offsets are sampled this often and changes between samples searched for,
+    // zones don't change twice within a day
+    private static final long SAMPLE_MILLIS = 24 * 60 * 60 * 1000L;
+
+    private static final ConcurrentHashMap<String, ZoneTransitions> ZONES = new ConcurrentHashMap<String, ZoneTransitions>();
+
+    private final TimeZone zone;
+    // Instants the offset changes at, ascending
+    private final long[] transitions;
+    // offsets[i] is in effect before transitions[i], the last one after all of them
+    private final int[] offsets;
+
+    private ZoneTransitions(TimeZone zone) {
+        this.zone = zone;
+
+        long[] changes = new long[64];
+        int[] after = new int[65];
+        int count = 0;
+        int offset = zone.getOffset(FIRST_MILLIS);
+        after[0] = offset;
+        for (long t = FIRST_MILLIS; t < LAST_MILLIS; t += SAMPLE_MILLIS) {
+            int next = zone.getOffset(t + SAMPLE_MILLIS);
+            if (next == offset) {
+                continue;
+            }
+            // The first second with the new offset, offsets change on whole seconds
+            long lo = t / 1000;
+            long hi = (t + SAMPLE_MILLIS) / 1000;
+            while (hi - lo > 1) {
+                long mid = lo + (hi - lo) / 2;
+                if (zone.getOffset(mid * 1000) == offset) {
+                    lo = mid;
+                } else {
+                    hi = mid;
+                }
+            }
+            if (count == changes.length) {
+                changes = Arrays.copyOf(changes, count * 2);
+                after = Arrays.copyOf(after, count * 2 + 1);
+            }
+            changes[count++] = hi * 1000;
+            after[count] = next;
+            offset = next;
+        }
+        this.transitions = Arrays.copyOf(changes, count);
+        this.offsets = Arrays.copyOf(after, count + 1);
+    }
+
+    /**
+     * The table for a zone id, or null if Java doesn't know the zone
+     */
+    public static ZoneTransitions forZone(String id) {
+        ZoneTransitions transitions = ZONES.get(id);
+        if (transitions == null) {
+            TimeZone zone = TimeZone.getTimeZone(id);
+            // Unknown ids quietly come back as GMT
+            if (zone.getID().equals("GMT") && !id.equals("GMT")) {
+                return null;
+            }
+            transitions = new ZoneTransitions(zone);
+            ZoneTransitions raced = ZONES.putIfAbsent(id, transitions);
+            if (raced != null) {
+                transitions = raced;
+            }
+        }
+        return transitions;
+    }
+
+    public TimeZone getZone() {
+        return zone;
+    }
+
+    /**
+     * Offset from UTC in milliseconds at an instant, same as TimeZone.getOffset
+     */
+    public int offset(long millis) {
+        if (millis < FIRST_MILLIS || millis >= LAST_MILLIS) {
+            return zone.getOffset(millis);
+        }
+        int i = Arrays.binarySearch(transitions, millis);
+        return offsets[i >= 0 ? i + 1 : -i - 1];
+    }
+}
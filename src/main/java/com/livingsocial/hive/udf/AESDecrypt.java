@@ -9,6 +9,9 @@ import org.apache.hadoop.io.Text;
 import javax.crypto.spec.SecretKeySpec;
 import javax.crypto.Cipher;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 
 @Description(
 	     name = "aesdecrypt",
@@ -18,17 +21,71 @@ import javax.crypto.Cipher;
 	     "  123456789456468466"
 	     )
 public class AESDecrypt extends UDF {
+    // Initialized ciphers of the most recently used keys, for keys that change
+    // from row to row
+    private static final int MAX_CIPHERS = 64;
+
+    private final Map<Text, Cipher> ciphers = new LinkedHashMap<Text, Cipher>(16, 0.75f, true) {
+	@Override
+	protected boolean removeEldestEntry(Map.Entry<Text, Cipher> eldest) {
+	    return size() > MAX_CIPHERS;
+	}
+    };
+    private final Text lastKey = new Text();
+    private Cipher lastCipher;
+
+    private byte[] decoded = new byte[0];
+    private byte[] original = new byte[0];
+    private final Text unencrypted = new Text();
+
     public Text evaluate(Text encrypted, Text key) {
-	Text unencrypted = new Text(encrypted);
-	if(encrypted != null && key != null) {
+	if (encrypted == null) {
+	    return null;
+	}
+	unencrypted.set(encrypted);
+	if(key != null) {
+	    Cipher cipher = null;
 	    try {
-		SecretKeySpec skeySpec = new SecretKeySpec(key.toString().getBytes(), "AES");
-		Cipher cipher = Cipher.getInstance("AES/ECB/NoPadding");
-		cipher.init(Cipher.DECRYPT_MODE, skeySpec);
-		byte[] original = cipher.doFinal(Base32.hexdecode(encrypted.toString()));
-		unencrypted.set(original);
-	    } catch (Exception e) {};
+		cipher = cipher(key);
+		int size = Base32.decodedLength(encrypted.getLength());
+		if (decoded.length < size) {
+		    decoded = new byte[size];
+		}
+		int length = Base32.hexdecode(encrypted.getBytes(), 0, encrypted.getLength(), decoded, 0);
+		// Without padding only whole blocks decrypt, anything else comes back as is
+		if (length == 0 || length % 16 != 0) {
+		    return unencrypted;
+		}
+		if (original.length < length) {
+		    original = new byte[length];
+		}
+		int written = cipher.doFinal(decoded, 0, length, original, 0);
+		unencrypted.set(original, 0, written);
+	    } catch (Exception e) {
+		// Start the key over rather than trust a cipher that failed part way
+		if (cipher != null) {
+		    ciphers.remove(key);
+		    lastCipher = null;
+		}
+	    };
 	}
 	return unencrypted;
     }
-}
\ No newline at end of file
+
+    // The decrypting cipher for a key, initialized once per key
+    private Cipher cipher(Text key) throws Exception {
+	if (lastCipher != null && key.equals(lastKey)) {
+	    return lastCipher;
+	}
+	Cipher cipher = ciphers.get(key);
+	if (cipher == null) {
+	    SecretKeySpec skeySpec = new SecretKeySpec(key.toString().getBytes(), "AES");
+	    cipher = Cipher.getInstance("AES/ECB/NoPadding");
+	    cipher.init(Cipher.DECRYPT_MODE, skeySpec);
+	    ciphers.put(new Text(key), cipher);
+	}
+	lastKey.set(key);
+	lastCipher = cipher;
+	return cipher;
+    }
+}
@@ -0,0 +1,100 @@
+package com.livingsocial.hive.udf;
+
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF;
+import org.apache.hadoop.hive.serde2.objectinspector.ConstantObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.BinaryObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspector;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.Text;
+
+import com.livingsocial.hive.Base32;
+
+/**
+ * Decodes base32 from a string's or binary's bytes straight into a reused
+ * binary.
+ */
+@Description(name = "base32_decode",
+    value = "_FUNC_(value[, alphabet]) - Returns the binary a base32 string decodes to",
+    extended = "alphabet is 'base32' (the default, RFC 4648 'A'-'Z' and '2'-'7') or 'base32hex' ('0'-'9' and 'A'-'V').  " +
+        "Digits are read in either case, anything that isn't a digit (like '=' padding) is skipped.  Returns null if value is null.\n" +
+        "Example:\n" +
+        "  > SELECT cast(_FUNC_('NBSWY3DP') AS string) FROM src LIMIT 1;\n" +
+        "  hello")
+public class Base32Decode extends GenericUDF {
+
+  private PrimitiveObjectInspector valueOI;
+  private boolean hex;
+
+  private byte[] buffer = new byte[0];
+  private final BytesWritable result = new BytesWritable();
+
+  @Override
+  public ObjectInspector initialize(ObjectInspector[] arguments) throws UDFArgumentException {
+    if (arguments.length < 1 || arguments.length > 2) {
+      throw new UDFArgumentLengthException("base32_decode takes a value and optionally an alphabet");
+    }
+    if (!(arguments[0] instanceof StringObjectInspector) && !(arguments[0] instanceof BinaryObjectInspector)) {
+      throw new UDFArgumentTypeException(0, "base32_decode takes a string or binary, got " + arguments[0].getTypeName());
+    }
+    valueOI = (PrimitiveObjectInspector) arguments[0];
+    if (arguments.length == 2) {
+      hex = isHexAlphabet(arguments[1], "base32_decode");
+    }
+    return PrimitiveObjectInspectorFactory.writableBinaryObjectInspector;
+  }
+
+  // Whether a constant alphabet argument is 'base32hex' rather than 'base32'
+  static boolean isHexAlphabet(ObjectInspector argument, String function) throws UDFArgumentException {
+    if (!(argument instanceof StringObjectInspector) || !(argument instanceof ConstantObjectInspector)) {
+      throw new UDFArgumentTypeException(1, "The alphabet of " + function + " has to be a constant 'base32' or 'base32hex'");
+    }
+    Object value = ((ConstantObjectInspector) argument).getWritableConstantValue();
+    String name = value == null ? "" : value.toString().trim().toLowerCase();
+    if (name.equals("base32")) {
+      return false;
+    } else if (name.equals("base32hex")) {
+      return true;
+    }
+    throw new UDFArgumentTypeException(1, "The alphabet of " + function + " has to be 'base32' or 'base32hex', got '" + value + "'");
+  }
+
+  @Override
+  public Object evaluate(DeferredObject[] arguments) throws HiveException {
+    Object value = arguments[0].get();
+    if (value == null) {
+      return null;
+    }
+    byte[] bytes;
+    int length;
+    if (valueOI instanceof StringObjectInspector) {
+      Text text = ((StringObjectInspector) valueOI).getPrimitiveWritableObject(value);
+      bytes = text.getBytes();
+      length = text.getLength();
+    } else {
+      BytesWritable binary = ((BinaryObjectInspector) valueOI).getPrimitiveWritableObject(value);
+      bytes = binary.getBytes();
+      length = binary.getLength();
+    }
+
+    int size = Base32.decodedLength(length);
+    if (buffer.length < size) {
+      buffer = new byte[size];
+    }
+    int written = hex ? Base32.hexdecode(bytes, 0, length, buffer, 0) : Base32.decode(bytes, 0, length, buffer, 0);
+    result.set(buffer, 0, written);
+    return result;
+  }
+
+  @Override
+  public String getDisplayString(String[] children) {
+    return "base32_decode(" + children[0] + (children.length > 1 ? ", " + children[1] : "") + ")";
+  }
+}
@@ -0,0 +1,83 @@
+package com.livingsocial.hive.udf;
+
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.BinaryObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspector;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.Text;
+
+import com.livingsocial.hive.Base32;
+
+/**
+ * Base32 encodes a string's bytes or a binary straight into a reused Text.
+ */
+@Description(name = "base32_encode",
+    value = "_FUNC_(value[, alphabet]) - Returns the upper case base32 encoding of a string or binary, without padding",
+    extended = "alphabet is 'base32' (the default, RFC 4648 'A'-'Z' and '2'-'7') or 'base32hex' ('0'-'9' and 'A'-'V', what aesdecrypt reads).  " +
+        "Returns null if value is null.\n" +
+        "Example:\n" +
+        "  > SELECT _FUNC_('hello') FROM src LIMIT 1;\n" +
+        "  NBSWY3DP")
+public class Base32Encode extends GenericUDF {
+
+  private PrimitiveObjectInspector valueOI;
+  private boolean hex;
+
+  private byte[] buffer = new byte[0];
+  private final Text result = new Text();
+
+  @Override
+  public ObjectInspector initialize(ObjectInspector[] arguments) throws UDFArgumentException {
+    if (arguments.length < 1 || arguments.length > 2) {
+      throw new UDFArgumentLengthException("base32_encode takes a value and optionally an alphabet");
+    }
+    if (!(arguments[0] instanceof StringObjectInspector) && !(arguments[0] instanceof BinaryObjectInspector)) {
+      throw new UDFArgumentTypeException(0, "base32_encode takes a string or binary, got " + arguments[0].getTypeName());
+    }
+    valueOI = (PrimitiveObjectInspector) arguments[0];
+    if (arguments.length == 2) {
+      hex = Base32Decode.isHexAlphabet(arguments[1], "base32_encode");
+    }
+    return PrimitiveObjectInspectorFactory.writableStringObjectInspector;
+  }
+
+  @Override
+  public Object evaluate(DeferredObject[] arguments) throws HiveException {
+    Object value = arguments[0].get();
+    if (value == null) {
+      return null;
+    }
+    byte[] bytes;
+    int length;
+    if (valueOI instanceof StringObjectInspector) {
+      Text text = ((StringObjectInspector) valueOI).getPrimitiveWritableObject(value);
+      bytes = text.getBytes();
+      length = text.getLength();
+    } else {
+      BytesWritable binary = ((BinaryObjectInspector) valueOI).getPrimitiveWritableObject(value);
+      bytes = binary.getBytes();
+      length = binary.getLength();
+    }
+
+    int size = Base32.encodedLength(length);
+    if (buffer.length < size) {
+      buffer = new byte[size];
+    }
+    int written = hex ? Base32.hexencode(bytes, 0, length, buffer, 0) : Base32.encode(bytes, 0, length, buffer, 0);
+    result.set(buffer, 0, written);
+    return result;
+  }
+
+  @Override
+  public String getDisplayString(String[] children) {
+    return "base32_encode(" + children[0] + (children.length > 1 ? ", " + children[1] : "") + ")";
+  }
+}
@@ -0,0 +1,162 @@
+package com.livingsocial.hive.udf;
+
+import com.livingsocial.hive.Utils;
+
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF;
+import org.apache.hadoop.hive.serde2.objectinspector.ConstantObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector.PrimitiveCategory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspector;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.io.Text;
+
+/**
+ * Picks one of several date string arguments, for max_date and min_date.
+ * Constant arguments are parsed once up front.  The others are compared
+ * byte by byte while they are canonical 'yyyy-MM-dd[ HH:mm:ss]' strings (see
+ * Utils.compareTimestamps) and only parsed when they aren't, so the usual
+ * row doesn't parse anything.
+ */
+public abstract class DateArgumentUDF extends GenericUDF {
+    private StringObjectInspector[] inspectors;
+    private Text[] constantTexts;
+    private long[] constantTimes;
+
+    // The argument being looked at
+    private Text text;
+    private long time;
+    private boolean timeKnown;
+
+    // The best argument so far
+    private Object best;
+    private Text bestText;
+    private long bestTime;
+    private boolean bestTimeKnown;
+
+    protected abstract String name();
+
+    /**
+     * Whether the argument being looked at replaces the best one so far, or
+     * when there isn't one yet whether it is taken at all
+     */
+    protected abstract boolean replacesBest();
+
+    @Override
+    public ObjectInspector initialize(ObjectInspector[] arguments)
+	throws UDFArgumentTypeException {
+
+	inspectors = new StringObjectInspector[arguments.length];
+	constantTexts = new Text[arguments.length];
+	constantTimes = new long[arguments.length];
+
+	for(int i=0; i<arguments.length; i++) {
+	    if(arguments[i].getCategory() != ObjectInspector.Category.PRIMITIVE)
+		throw new UDFArgumentTypeException(i, name() + " takes only date or datetime string arguments");
+
+	    PrimitiveCategory category = ((PrimitiveObjectInspector) arguments[i]).getPrimitiveCategory();
+	    if(category == PrimitiveCategory.VOID)
+		continue;
+	    if(category != PrimitiveCategory.STRING)
+		throw new UDFArgumentTypeException(i, name() + " takes only date or datetime string arguments");
+
+	    inspectors[i] = (StringObjectInspector) arguments[i];
+	    if(arguments[i] instanceof ConstantObjectInspector) {
+		Object value = ((ConstantObjectInspector) arguments[i]).getWritableConstantValue();
+		if(value != null) {
+		    constantTexts[i] = new Text(inspectors[i].getPrimitiveWritableObject(value));
+		    constantTimes[i] = Utils.stringToTimestamp(constantTexts[i]);
+		}
+	    }
+	}
+
+	return arguments[0];
+    }
+
+    @Override
+    public Object evaluate(DeferredObject[] arguments) throws HiveException {
+	best = null;
+	bestText = null;
+	bestTimeKnown = false;
+
+	for (int i=0; i<arguments.length; i++) {
+	    Object ai = arguments[i].get();
+	    if (ai == null || inspectors[i] == null)
+		continue;
+
+	    if (constantTexts[i] != null) {
+		text = constantTexts[i];
+		time = constantTimes[i];
+		timeKnown = true;
+	    } else {
+		text = inspectors[i].getPrimitiveWritableObject(ai);
+		timeKnown = false;
+	    }
+
+	    if (replacesBest()) {
+		best = ai;
+		bestText = text;
+		bestTime = time;
+		bestTimeKnown = timeKnown;
+	    }
+	}
+	text = null;
+	bestText = null;
+	return best;
+    }
+
+    protected boolean hasBest() {
+	return best != null;
+    }
+
+    // The argument's timestamp, as Utils.stringToTimestamp parses it
+    protected long time() {
+	if (!timeKnown) {
+	    time = Utils.stringToTimestamp(text);
+	    timeKnown = true;
+	}
+	return time;
+    }
+
+    protected long bestTime() {
+	if (!bestTimeKnown) {
+	    bestTime = Utils.stringToTimestamp(bestText);
+	    bestTimeKnown = true;
+	}
+	return bestTime;
+    }
+
+    // Sign of the argument's timestamp minus the best one's
+    protected int compareToBest() {
+	if (!timeKnown || !bestTimeKnown) {
+	    int cmp = Utils.compareTimestamps(text.getBytes(), 0, text.getLength(), bestText.getBytes(), 0, bestText.getLength());
+	    if (cmp != Utils.NOT_COMPARABLE)
+		return cmp;
+	}
+	long t = time();
+	long b = bestTime();
+	return t < b ? -1 : (t == b ? 0 : 1);
+    }
+
+    // Sign of the best timestamp minus the one of a date, or NOT_COMPARABLE
+    protected int compareBestTo(byte[] date) {
+	return Utils.compareTimestamps(bestText.getBytes(), 0, bestText.getLength(), date, 0, date.length);
+    }
+
+    @Override
+    public String getDisplayString(String[] children) {
+	StringBuilder sb = new StringBuilder();
+	sb.append(name());
+	sb.append("(");
+	if (children.length > 0) {
+	    sb.append(children[0]);
+	    for(int i=1; i<children.length; i++) {
+		sb.append(",");
+		sb.append(children[i]);
+	    }
+	}
+	sb.append(")");
+	return sb.toString();
+    }
+}
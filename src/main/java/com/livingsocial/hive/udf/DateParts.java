@@ -0,0 +1,108 @@
+package com.livingsocial.hive.udf;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorConverter.TextConverter;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspector;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+
+import com.livingsocial.hive.CalendarTable;
+import com.livingsocial.hive.Utils;
+
+/**
+ * All the calendar fields of a date from one parse, instead of calling
+ * dayofweek, iso_year_of_week, quarter, year, month, ... on the same column.
+ * The fields are the same as the single field functions return.
+ */
+@Description(name = "date_parts", value = "_FUNC_(date) - Returns struct<year, month, day, quarter, dow, iso_year, iso_week, day_of_year, epoch_day> for a 'yyyy-MM-dd' or 'yyyy-MM-dd HH:mm:ss' date",
+    extended = "dow is 1 for Sunday through 7 for Saturday, as in dayofweek.  iso_year and iso_week are the ISO 8601 week numbering, " +
+        "iso_year as in iso_year_of_week.  epoch_day counts days since 1970-01-01.  Returns null for values that aren't dates.\n" +
+        "Example:\n" +
+        "  > SELECT d.year, d.quarter, d.iso_week FROM (SELECT _FUNC_(created_at) AS d FROM src) t;\n" +
+        "  2012  4  52")
+public class DateParts extends GenericUDF {
+
+  private static final String[] FIELDS = {
+    "year", "month", "day", "quarter", "dow", "iso_year", "iso_week", "day_of_year", "epoch_day" };
+
+  private StringObjectInspector stringOI;
+  private TextConverter converter;
+
+  private final IntWritable year = new IntWritable();
+  private final IntWritable month = new IntWritable();
+  private final IntWritable day = new IntWritable();
+  private final IntWritable quarter = new IntWritable();
+  private final IntWritable dayOfWeek = new IntWritable();
+  private final IntWritable isoYear = new IntWritable();
+  private final IntWritable isoWeek = new IntWritable();
+  private final IntWritable dayOfYear = new IntWritable();
+  private final LongWritable epochDay = new LongWritable();
+  private final Object[] result = { year, month, day, quarter, dayOfWeek, isoYear, isoWeek, dayOfYear, epochDay };
+
+  @Override
+  public ObjectInspector initialize(ObjectInspector[] arguments) throws UDFArgumentException {
+    if (arguments.length != 1) {
+      throw new UDFArgumentLengthException("date_parts takes exactly one argument, got " + arguments.length);
+    }
+    if (arguments[0].getCategory() != ObjectInspector.Category.PRIMITIVE) {
+      throw new UDFArgumentTypeException(0, "date_parts takes a date string, got " + arguments[0].getTypeName());
+    }
+    if (arguments[0] instanceof StringObjectInspector) {
+      stringOI = (StringObjectInspector) arguments[0];
+    } else {
+      converter = new TextConverter((PrimitiveObjectInspector) arguments[0]);
+    }
+
+    ArrayList<ObjectInspector> fieldOIs = new ArrayList<ObjectInspector>();
+    for (int i = 0; i < FIELDS.length - 1; i++) {
+      fieldOIs.add(PrimitiveObjectInspectorFactory.writableIntObjectInspector);
+    }
+    fieldOIs.add(PrimitiveObjectInspectorFactory.writableLongObjectInspector);
+    return ObjectInspectorFactory.getStandardStructObjectInspector(Arrays.asList(FIELDS), fieldOIs);
+  }
+
+  @Override
+  public Object evaluate(DeferredObject[] arguments) throws HiveException {
+    Object value = arguments[0].get();
+    if (value == null) {
+      return null;
+    }
+    Text text = stringOI != null ? stringOI.getPrimitiveWritableObject(value) : (Text) converter.convert(value);
+    if (text == null) {
+      return null;
+    }
+
+    long epoch = Utils.stringToEpochDay(text);
+    if (epoch == Utils.NO_DATE) {
+      return null;
+    }
+    year.set(CalendarTable.year(epoch));
+    month.set(CalendarTable.month(epoch));
+    day.set(CalendarTable.dayOfMonth(epoch));
+    quarter.set(CalendarTable.quarter(epoch));
+    dayOfWeek.set(CalendarTable.dayOfWeek(epoch));
+    isoYear.set(CalendarTable.isoYear(epoch));
+    isoWeek.set(CalendarTable.isoWeek(epoch));
+    dayOfYear.set(CalendarTable.dayOfYear(epoch));
+    epochDay.set(epoch);
+    return result;
+  }
+
+  @Override
+  public String getDisplayString(String[] children) {
+    return "date_parts(" + children[0] + ")";
+  }
+}
@@ -0,0 +1,154 @@
+package com.livingsocial.hive.udf;
+
+import java.util.ArrayList;
+
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.StructField;
+import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.LongObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspector;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+
+import com.livingsocial.hive.Utils;
+
+/**
+ * Keeps the string that parses to the latest (or earliest) date, for smax and
+ * smin.  The buffer holds the parsed timestamp next to the string's bytes so
+ * each row is parsed once and compared as a long, and the partial results
+ * carry the timestamp along as struct<ts bigint, raw string> so merging
+ * doesn't parse again.  Strings that aren't dates count as -1, as
+ * Utils.stringToTimestamp returns.
+ */
+public abstract class DateStringEvaluator extends GenericUDAFEvaluator {
+
+  static class DateStringBuffer extends AbstractAggregationBuffer {
+    boolean empty = true;
+    long ts;
+    final Text raw = new Text();
+
+    @Override
+    public int estimate() {
+      // Object headers, the fields and the Text's byte array
+      return 48 + raw.getBytes().length;
+    }
+  }
+
+  // PARTIAL1 and COMPLETE
+  private transient StringObjectInspector inputOI;
+
+  // PARTIAL2 and FINAL
+  private transient StructObjectInspector partialOI;
+  private transient StructField tsField;
+  private transient StructField rawField;
+  private transient LongObjectInspector tsOI;
+  private transient StringObjectInspector rawOI;
+
+  private transient LongWritable partialTs;
+  private transient Text partialRaw;
+  private transient Object[] partialResult;
+  private transient Text result;
+
+  /**
+   * Whether the string parsed to ts replaces the one parsed to current, only
+   * strictly later (or earlier) dates do so the first of equal dates is kept
+   */
+  protected abstract boolean replaces(long ts, long current);
+
+  @Override
+  public ObjectInspector init(Mode m, ObjectInspector[] parameters) throws HiveException {
+    super.init(m, parameters);
+    if (m == Mode.PARTIAL1 || m == Mode.COMPLETE) {
+      inputOI = (StringObjectInspector) parameters[0];
+    } else {
+      partialOI = (StructObjectInspector) parameters[0];
+      tsField = partialOI.getStructFieldRef("ts");
+      rawField = partialOI.getStructFieldRef("raw");
+      tsOI = (LongObjectInspector) tsField.getFieldObjectInspector();
+      rawOI = (StringObjectInspector) rawField.getFieldObjectInspector();
+    }
+
+    if (m == Mode.PARTIAL1 || m == Mode.PARTIAL2) {
+      partialTs = new LongWritable();
+      partialRaw = new Text();
+      partialResult = new Object[] { partialTs, partialRaw };
+      ArrayList<String> fieldNames = new ArrayList<String>();
+      ArrayList<ObjectInspector> fieldOIs = new ArrayList<ObjectInspector>();
+      fieldNames.add("ts");
+      fieldNames.add("raw");
+      fieldOIs.add(PrimitiveObjectInspectorFactory.writableLongObjectInspector);
+      fieldOIs.add(PrimitiveObjectInspectorFactory.writableStringObjectInspector);
+      return ObjectInspectorFactory.getStandardStructObjectInspector(fieldNames, fieldOIs);
+    }
+    result = new Text();
+    return PrimitiveObjectInspectorFactory.writableStringObjectInspector;
+  }
+
+  @Override
+  public AggregationBuffer getNewAggregationBuffer() throws HiveException {
+    return new DateStringBuffer();
+  }
+
+  @Override
+  public void reset(AggregationBuffer agg) throws HiveException {
+    DateStringBuffer buffer = (DateStringBuffer) agg;
+    buffer.empty = true;
+    buffer.raw.clear();
+  }
+
+  @Override
+  public void iterate(AggregationBuffer agg, Object[] parameters) throws HiveException {
+    Object value = parameters[0];
+    if (value == null) {
+      return;
+    }
+    Text text = inputOI.getPrimitiveWritableObject(value);
+    update((DateStringBuffer) agg, Utils.stringToTimestamp(text), text);
+  }
+
+  @Override
+  public Object terminatePartial(AggregationBuffer agg) throws HiveException {
+    DateStringBuffer buffer = (DateStringBuffer) agg;
+    if (buffer.empty) {
+      return null;
+    }
+    partialTs.set(buffer.ts);
+    partialRaw.set(buffer.raw);
+    return partialResult;
+  }
+
+  @Override
+  public void merge(AggregationBuffer agg, Object partial) throws HiveException {
+    if (partial == null) {
+      return;
+    }
+    Object ts = partialOI.getStructFieldData(partial, tsField);
+    Object raw = partialOI.getStructFieldData(partial, rawField);
+    if (ts == null || raw == null) {
+      return;
+    }
+    update((DateStringBuffer) agg, tsOI.get(ts), rawOI.getPrimitiveWritableObject(raw));
+  }
+
+  @Override
+  public Object terminate(AggregationBuffer agg) throws HiveException {
+    DateStringBuffer buffer = (DateStringBuffer) agg;
+    if (buffer.empty) {
+      return null;
+    }
+    result.set(buffer.raw);
+    return result;
+  }
+
+  private void update(DateStringBuffer buffer, long ts, Text raw) {
+    if (buffer.empty || replaces(ts, buffer.ts)) {
+      buffer.empty = false;
+      buffer.ts = ts;
+      buffer.raw.set(raw.getBytes(), 0, raw.getLength());
+    }
+  }
+}
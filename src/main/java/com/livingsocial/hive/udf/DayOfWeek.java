@@ -1,30 +1,21 @@
 package com.livingsocial.hive.udf;
 
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
-import java.util.Date;
-
 import org.apache.hadoop.hive.ql.exec.Description;
 import org.apache.hadoop.hive.ql.exec.UDF;
 import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.Text;
 
+import com.livingsocial.hive.CalendarTable;
+import com.livingsocial.hive.Utils;
+
 @Description(name = "dayofweek", 
 	     value = "_FUNC_(date) - Returns the day of the week",
     extended = "Examples:\n"
     + "  > SELECT _FUNC_('2011-08-29') FROM src LIMIT 1;\n"
 	     + "  1\n")
 public class DayOfWeek extends UDF {
-  private final SimpleDateFormat formatter = new SimpleDateFormat("yyyy-MM-dd");
-  private final Calendar calendar = Calendar.getInstance();
-
   private IntWritable result = new IntWritable();
 
-  public DayOfWeek() {
-    calendar.setFirstDayOfWeek(Calendar.MONDAY);
-  }
-
   /**
    * Get the day of week from a date string.
    * 
@@ -37,14 +28,12 @@ public class DayOfWeek extends UDF {
     if (dateString == null) {
       return null;
     }
-    try {
-      Date date = formatter.parse(dateString.toString());
-      calendar.setTime(date);
-      result.set(calendar.get(Calendar.DAY_OF_WEEK));
-      return result;
-    } catch (ParseException e) {
+    long day = Utils.stringToEpochDay(dateString);
+    if (day == Utils.NO_DATE) {
       return null;
     }
+    result.set(CalendarTable.dayOfWeek(day));
+    return result;
   }
 
 }
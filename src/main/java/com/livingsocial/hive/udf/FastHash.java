@@ -0,0 +1,186 @@
+package com.livingsocial.hive.udf;
+
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF;
+import org.apache.hadoop.hive.serde2.objectinspector.ConstantObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.BinaryObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorConverter.TextConverter;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspector;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+
+import com.livingsocial.hive.HashFunctions;
+
+/**
+ * A non-cryptographic hash for bucketing and dedup keys, where md5 or sha1
+ * would only be slower.  Strings and binaries are hashed from their bytes
+ * and numbers from their 8 byte little endian value, with nothing converted
+ * to a String on the way.
+ */
+@Description(name = "fast_hash",
+    value = "_FUNC_(value[, seed][, algorithm]) - Returns a non-cryptographic hash of value",
+    extended = "algorithm is 'xxh64' (the default), which returns a bigint, or 'murmur3_128', which returns a 16 byte binary laid out like Guava's Hashing.murmur3_128.  " +
+        "Strings and binaries hash their bytes.  Booleans and integers of every width hash the same 8 little endian bytes as the equal bigint, floats and doubles those of the double's bits.  " +
+        "Other types hash their string form.  seed is a bigint, murmur3_128 uses its low 32 bits as Guava's int seed.  Returns null if value or seed is null.\n" +
+        "Example:\n" +
+        "  > SELECT _FUNC_('abc') FROM src LIMIT 1;\n" +
+        "  4952883123889572249")
+public class FastHash extends GenericUDF {
+
+  private static final int XXH64 = 0;
+  private static final int MURMUR3_128 = 1;
+
+  private PrimitiveObjectInspector valueOI;
+  private TextConverter textConverter;
+  private PrimitiveObjectInspector seedOI;
+  private int algorithm = XXH64;
+
+  private final byte[] number = new byte[8];
+  private final LongWritable longResult = new LongWritable();
+  private final byte[] hash = new byte[16];
+  private final BytesWritable bytesResult = new BytesWritable();
+
+  @Override
+  public ObjectInspector initialize(ObjectInspector[] arguments) throws UDFArgumentException {
+    if (arguments.length < 1 || arguments.length > 3) {
+      throw new UDFArgumentLengthException("fast_hash takes a value, an optional seed and an optional algorithm");
+    }
+    for (int i = 0; i < arguments.length; i++) {
+      if (arguments[i].getCategory() != ObjectInspector.Category.PRIMITIVE) {
+        throw new UDFArgumentTypeException(i, "fast_hash takes primitive arguments, got " + arguments[i].getTypeName());
+      }
+    }
+    valueOI = (PrimitiveObjectInspector) arguments[0];
+    switch (valueOI.getPrimitiveCategory()) {
+    case STRING:
+    case BINARY:
+    case BOOLEAN:
+    case BYTE:
+    case SHORT:
+    case INT:
+    case LONG:
+    case FLOAT:
+    case DOUBLE:
+      break;
+    default:
+      textConverter = new TextConverter(valueOI);
+      break;
+    }
+
+    int next = 1;
+    if (next < arguments.length && !(arguments[next] instanceof StringObjectInspector)) {
+      seedOI = (PrimitiveObjectInspector) arguments[next];
+      switch (seedOI.getPrimitiveCategory()) {
+      case BYTE:
+      case SHORT:
+      case INT:
+      case LONG:
+        break;
+      default:
+        throw new UDFArgumentTypeException(next, "The seed of fast_hash has to be an integer, got " + arguments[next].getTypeName());
+      }
+      next++;
+    }
+    if (next < arguments.length) {
+      if (!(arguments[next] instanceof StringObjectInspector) || !(arguments[next] instanceof ConstantObjectInspector)) {
+        throw new UDFArgumentTypeException(next, "The algorithm of fast_hash has to be a constant 'xxh64' or 'murmur3_128'");
+      }
+      Object value = ((ConstantObjectInspector) arguments[next]).getWritableConstantValue();
+      String name = value == null ? "" : value.toString().trim().toLowerCase();
+      if (name.equals("xxh64")) {
+        algorithm = XXH64;
+      } else if (name.equals("murmur3_128")) {
+        algorithm = MURMUR3_128;
+      } else {
+        throw new UDFArgumentTypeException(next, "The algorithm of fast_hash has to be 'xxh64' or 'murmur3_128', got '" + value + "'");
+      }
+      next++;
+    }
+    if (next < arguments.length) {
+      throw new UDFArgumentTypeException(next, "fast_hash takes a value, an optional seed and an optional algorithm");
+    }
+
+    return algorithm == XXH64 ? PrimitiveObjectInspectorFactory.writableLongObjectInspector
+        : PrimitiveObjectInspectorFactory.writableBinaryObjectInspector;
+  }
+
+  @Override
+  public Object evaluate(DeferredObject[] arguments) throws HiveException {
+    Object value = arguments[0].get();
+    if (value == null) {
+      return null;
+    }
+    long seed = 0;
+    if (seedOI != null) {
+      Object seedValue = arguments[1].get();
+      if (seedValue == null) {
+        return null;
+      }
+      seed = PrimitiveObjectInspectorUtils.getLong(seedValue, seedOI);
+    }
+
+    byte[] bytes;
+    int length;
+    switch (valueOI.getPrimitiveCategory()) {
+    case STRING:
+      Text text = ((StringObjectInspector) valueOI).getPrimitiveWritableObject(value);
+      bytes = text.getBytes();
+      length = text.getLength();
+      break;
+    case BINARY:
+      BytesWritable binary = ((BinaryObjectInspector) valueOI).getPrimitiveWritableObject(value);
+      bytes = binary.getBytes();
+      length = binary.getLength();
+      break;
+    case BOOLEAN:
+    case BYTE:
+    case SHORT:
+    case INT:
+    case LONG:
+      HashFunctions.writeLong(number, 0, PrimitiveObjectInspectorUtils.getLong(value, valueOI));
+      bytes = number;
+      length = 8;
+      break;
+    case FLOAT:
+    case DOUBLE:
+      HashFunctions.writeLong(number, 0, Double.doubleToLongBits(PrimitiveObjectInspectorUtils.getDouble(value, valueOI)));
+      bytes = number;
+      length = 8;
+      break;
+    default:
+      Text converted = (Text) textConverter.convert(value);
+      bytes = converted.getBytes();
+      length = converted.getLength();
+      break;
+    }
+
+    if (algorithm == XXH64) {
+      longResult.set(HashFunctions.xxh64(bytes, 0, length, seed));
+      return longResult;
+    }
+    HashFunctions.murmur3_128(bytes, 0, length, (int) seed, hash, 0);
+    bytesResult.set(hash, 0, hash.length);
+    return bytesResult;
+  }
+
+  @Override
+  public String getDisplayString(String[] children) {
+    StringBuilder sb = new StringBuilder("fast_hash(");
+    for (int i = 0; i < children.length; i++) {
+      if (i > 0) {
+        sb.append(", ");
+      }
+      sb.append(children[i]);
+    }
+    return sb.append(")").toString();
+  }
+}
@@ -10,6 +10,7 @@ import java.util.Map;
 import org.apache.commons.codec.binary.Hex;
 import org.apache.hadoop.hive.ql.exec.Description;
 import org.apache.hadoop.hive.ql.exec.UDF;
+import org.apache.hadoop.hive.serde2.io.DoubleWritable;
 import org.apache.hadoop.io.Text;
 
 @Description(
@@ -27,14 +28,98 @@ public final class Hash extends UDF {
 	
 	private Map<String,Object> mapOut = new HashMap<String,Object>();
 	private Charset charset = Charset.forName("UTF8");
+
+	private final Hasher hasher = new Hasher();
+	private final DoubleWritable result = new DoubleWritable();
+
+	/**
+	 * The ls_hash of an id and salt as a whole number below 2^56, the first 7
+	 * bytes of the SHA-1, so callers can compare it without a double.  Keeps
+	 * one digest around and hashes ASCII ids and salts straight from their
+	 * bytes, only other strings go through the String the hash is defined on.
+	 */
+	public static final class Hasher {
+		private final MessageDigest md;
+		private final Charset charset = Charset.forName("UTF8");
+
+		public Hasher() {
+			try {
+				md = MessageDigest.getInstance("SHA1");
+			} catch (NoSuchAlgorithmException nsae) {
+				throw new IllegalArgumentException("SHA1 is not setup");
+			}
+		}
+
+		public long hash(Text id, Text salt) {
+			if (salt == null) {
+				salt = EMPTY;
+			}
+			if (isAscii(id) && isAscii(salt)) {
+				md.update(id.getBytes(), 0, id.getLength());
+				md.update(salt.getBytes(), 0, salt.getLength());
+			} else {
+				// Decoding replaces malformed UTF-8, hash what the String holds
+				md.update((id.toString() + salt).getBytes(charset));
+			}
+			byte[] hash = md.digest();
+			long value = 0;
+			for (int i = 0; i < CHARS_TO_USE / 2; i++) {
+				value = (value << 8) | (hash[i] & 0xff);
+			}
+			return value;
+		}
+
+		/**
+		 * The ls_hash value of a hash, between 0 and 1
+		 */
+		public static double toDouble(long hash) {
+			return hash / MAX_SIZE;
+		}
+
+		/**
+		 * The smallest hash that isn't below a fraction, hash < threshold(f)
+		 * is the same as toDouble(hash) < f
+		 */
+		public static long threshold(double fraction) {
+			double scaled = fraction * MAX_SIZE;
+			if (!(scaled > 0)) {
+				return 0;
+			}
+			if (scaled > MAX_SIZE) {
+				return (long) MAX_SIZE;
+			}
+			// Hashes above 2^53 round on the way to a double, step to the exact boundary
+			long threshold = (long) Math.ceil(scaled);
+			while (threshold > 0 && (double) (threshold - 1) >= scaled) {
+				threshold--;
+			}
+			while ((double) threshold < scaled) {
+				threshold++;
+			}
+			return threshold;
+		}
+
+		private static boolean isAscii(Text text) {
+			byte[] bytes = text.getBytes();
+			for (int i = text.getLength() - 1; i >= 0; i--) {
+				if (bytes[i] < 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
 			
-	public Double evaluate(final Text id) {
+	public DoubleWritable evaluate(final Text id) {
 		return evaluate(id, EMPTY);
 	}
 
-	public Double evaluate(Text id, Text salt) {
-		Double tmp = (Double) hashIt(id, salt).get("output");
-		return tmp;
+	public DoubleWritable evaluate(Text id, Text salt) {
+		if (id == null) {
+			return null;
+		}
+		result.set(Hasher.toDouble(hasher.hash(id, salt)));
+		return result;
 	}
 	
 
@@ -47,6 +132,7 @@ public final class Hash extends UDF {
 		return new Text(builder.toString());
 	}
 	
+	// The spelled out version of Hasher.hash, for debugging
 	private Map<String,Object> hashIt(Text id, Text salt) {
 		mapOut.clear();
 		if (id == null) {
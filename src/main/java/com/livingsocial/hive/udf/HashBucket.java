@@ -0,0 +1,216 @@
+package com.livingsocial.hive.udf;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF;
+import org.apache.hadoop.hive.serde2.objectinspector.ConstantObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ListObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorConverter.TextConverter;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+
+/**
+ * Picks an experiment arm from an id and salt with one ls_hash.  The weights
+ * become cumulative thresholds on the hash, the same ones ls_sample uses, so
+ * an arm is a binary search instead of a chain of ls_hash comparisons.  A
+ * constant weight array is turned into thresholds in initialize, any other
+ * is only redone when it differs from the last row's.
+ */
+@Description(
+    name = "ls_bucket",
+    value = "_FUNC_(some_id, some_salt, array(weights)) - the arm, counting from 0, that ls_hash(some_id, some_salt) falls in when 0 to 1 is split by weights",
+    extended = "Arm i is picked when the sum of the weights before it over the total <= ls_hash(some_id, some_salt) < the sum through it over the total.\n" +
+               "Passing an array of salts instead of one returns an array with the arm for each salt.  Null when some_id or the weights are null.\n" +
+               "  select _FUNC_(id, 'my_salt', array(0.25, 0.25, 0.5)) as arm from some_table;  -- arms 0 and 1 get 25% each, arm 2 gets 50%\n" +
+               "  select _FUNC_(id, array('test 1', 'test 2'), array(1, 1)) as arms from some_table;  -- an A/B split for each of two tests"
+    )
+public final class HashBucket extends GenericUDF {
+
+  private transient Hash.Hasher hasher;
+
+  private TextConverter idConverter;
+  private TextConverter saltConverter;
+  private ListObjectInspector saltsOI;
+  private ListObjectInspector weightsOI;
+  private PrimitiveObjectInspector weightOI;
+
+  // Set when the weights are a constant
+  private boolean constantWeights;
+  // The weights the thresholds were built from, null before the first
+  private double[] weights;
+  // thresholds[i] is the smallest hash past arm i, the last arm takes the rest
+  private long[] thresholds;
+  private Object[] values = new Object[0];
+
+  private final IntWritable arm = new IntWritable();
+  private final ArrayList<IntWritable> arms = new ArrayList<IntWritable>();
+
+  @Override
+  public ObjectInspector initialize(ObjectInspector[] arguments) throws UDFArgumentException {
+    if (arguments.length != 3) {
+      throw new UDFArgumentLengthException("ls_bucket takes an id, a salt or array of salts and an array of weights, got " + arguments.length + " arguments");
+    }
+    if (arguments[0].getCategory() != ObjectInspector.Category.PRIMITIVE) {
+      throw new UDFArgumentTypeException(0, "ls_bucket takes a primitive id, got " + arguments[0].getTypeName());
+    }
+    idConverter = new TextConverter((PrimitiveObjectInspector) arguments[0]);
+
+    if (arguments[1].getCategory() == ObjectInspector.Category.PRIMITIVE) {
+      saltConverter = new TextConverter((PrimitiveObjectInspector) arguments[1]);
+    } else if (arguments[1].getCategory() == ObjectInspector.Category.LIST
+        && ((ListObjectInspector) arguments[1]).getListElementObjectInspector().getCategory() == ObjectInspector.Category.PRIMITIVE) {
+      saltsOI = (ListObjectInspector) arguments[1];
+      saltConverter = new TextConverter((PrimitiveObjectInspector) saltsOI.getListElementObjectInspector());
+    } else {
+      throw new UDFArgumentTypeException(1, "ls_bucket takes a salt or an array of salts, got " + arguments[1].getTypeName());
+    }
+
+    if (arguments[2].getCategory() != ObjectInspector.Category.LIST
+        || ((ListObjectInspector) arguments[2]).getListElementObjectInspector().getCategory() != ObjectInspector.Category.PRIMITIVE) {
+      throw new UDFArgumentTypeException(2, "ls_bucket takes an array of numeric weights, got " + arguments[2].getTypeName());
+    }
+    weightsOI = (ListObjectInspector) arguments[2];
+    weightOI = (PrimitiveObjectInspector) weightsOI.getListElementObjectInspector();
+    if (arguments[2] instanceof ConstantObjectInspector) {
+      List<?> constant = (List<?>) ((ConstantObjectInspector) arguments[2]).getWritableConstantValue();
+      if (constant == null) {
+        throw new UDFArgumentTypeException(2, "The weights of ls_bucket can't be null");
+      }
+      String invalid = setWeights(constant.toArray(), constant.size());
+      if (invalid != null) {
+        throw new UDFArgumentTypeException(2, invalid);
+      }
+      constantWeights = true;
+    }
+
+    ObjectInspector armOI = PrimitiveObjectInspectorFactory.writableIntObjectInspector;
+    return saltsOI == null ? armOI : ObjectInspectorFactory.getStandardListObjectInspector(armOI);
+  }
+
+  @Override
+  public Object evaluate(DeferredObject[] arguments) throws HiveException {
+    Object id = arguments[0].get();
+    if (id == null) {
+      return null;
+    }
+    if (!constantWeights) {
+      Object list = arguments[2].get();
+      if (list == null) {
+        return null;
+      }
+      int length = weightsOI.getListLength(list);
+      if (values.length < length) {
+        values = new Object[length];
+      }
+      for (int i = 0; i < length; i++) {
+        values[i] = weightsOI.getListElement(list, i);
+      }
+      String invalid = setWeights(values, length);
+      if (invalid != null) {
+        throw new HiveException(invalid);
+      }
+    }
+
+    if (hasher == null) {
+      hasher = new Hash.Hasher();
+    }
+    Text idText = (Text) idConverter.convert(id);
+    Object salt = arguments[1].get();
+    if (saltsOI == null) {
+      arm.set(arm(hasher.hash(idText, salt == null ? null : (Text) saltConverter.convert(salt))));
+      return arm;
+    }
+
+    if (salt == null) {
+      return null;
+    }
+    int count = saltsOI.getListLength(salt);
+    while (arms.size() < count) {
+      arms.add(new IntWritable());
+    }
+    while (arms.size() > count) {
+      arms.remove(arms.size() - 1);
+    }
+    for (int i = 0; i < count; i++) {
+      Object element = saltsOI.getListElement(salt, i);
+      long hash = hasher.hash(idText, element == null ? null : (Text) saltConverter.convert(element));
+      arms.get(i).set(arm(hash));
+    }
+    return arms;
+  }
+
+  // The number of thresholds at or below the hash
+  private int arm(long hash) {
+    int lo = 0;
+    int hi = thresholds.length;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (thresholds[mid] <= hash) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+
+  // Builds the thresholds unless the weights are the ones already built,
+  // returns why they're unusable or null
+  private String setWeights(Object[] values, int length) {
+    boolean same = weights != null && length == weights.length;
+    double[] next = same ? null : new double[length];
+    for (int i = 0; i < length; i++) {
+      if (values[i] == null) {
+        return "The weights of ls_bucket can't contain nulls";
+      }
+      double weight = PrimitiveObjectInspectorUtils.getDouble(values[i], weightOI);
+      if (same && weight != weights[i]) {
+        same = false;
+        next = Arrays.copyOf(weights, length);
+      }
+      if (!same) {
+        next[i] = weight;
+      }
+    }
+    if (same) {
+      return null;
+    }
+
+    double total = 0;
+    for (double weight : next) {
+      if (!(weight >= 0) || Double.isInfinite(weight)) {
+        return "The weights of ls_bucket have to be zero or more, got " + weight;
+      }
+      total += weight;
+    }
+    if (!(total > 0)) {
+      return "The weights of ls_bucket have to add up to more than zero";
+    }
+    long[] built = new long[length - 1];
+    double sum = 0;
+    for (int i = 0; i < built.length; i++) {
+      sum += next[i];
+      built[i] = Hash.Hasher.threshold(sum / total);
+    }
+    weights = next;
+    thresholds = built;
+    return null;
+  }
+
+  @Override
+  public String getDisplayString(String[] children) {
+    return "ls_bucket(" + children[0] + ", " + children[1] + ", " + children[2] + ")";
+  }
+}
@@ -0,0 +1,98 @@
+package com.livingsocial.hive.udf;
+
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF;
+import org.apache.hadoop.hive.serde2.objectinspector.ConstantObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorConverter.TextConverter;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+import org.apache.hadoop.io.BooleanWritable;
+import org.apache.hadoop.io.Text;
+
+/**
+ * ls_hash(id, salt) < fraction as one function.  A constant fraction is
+ * turned into a threshold on the hash's first 7 bytes up front, so each row
+ * is one SHA-1 and a long comparison.
+ */
+@Description(
+    name = "ls_sample",
+    value = "_FUNC_(some_id, some_salt, fraction) - true when ls_hash(some_id, some_salt) < fraction, a repeatable sample of about fraction of the ids",
+    extended = "Returns the same as ls_hash(some_id, some_salt) < fraction, null when some_id is null.\n" +
+               "  select * from some_table_to_sample where _FUNC_(id, 'my_salt', 0.10);  -- extract a 10% random sample"
+    )
+public final class HashSample extends GenericUDF {
+
+  private transient Hash.Hasher hasher;
+
+  private ObjectInspector[] inputOIs;
+  private TextConverter idConverter;
+  private TextConverter saltConverter;
+
+  // Set when the fraction is a constant
+  private boolean constantFraction;
+  private long threshold;
+
+  private final BooleanWritable result = new BooleanWritable();
+
+  @Override
+  public ObjectInspector initialize(ObjectInspector[] arguments) throws UDFArgumentException {
+    if (arguments.length != 3) {
+      throw new UDFArgumentLengthException("ls_sample takes an id, a salt and a fraction, got " + arguments.length + " arguments");
+    }
+    for (int i = 0; i < 3; i++) {
+      if (arguments[i].getCategory() != ObjectInspector.Category.PRIMITIVE) {
+        throw new UDFArgumentTypeException(i, "ls_sample takes primitive arguments, got " + arguments[i].getTypeName());
+      }
+    }
+    inputOIs = arguments;
+    idConverter = new TextConverter((PrimitiveObjectInspector) arguments[0]);
+    saltConverter = new TextConverter((PrimitiveObjectInspector) arguments[1]);
+
+    if (arguments[2] instanceof ConstantObjectInspector) {
+      Object fraction = ((ConstantObjectInspector) arguments[2]).getWritableConstantValue();
+      if (fraction == null) {
+        throw new UDFArgumentTypeException(2, "The fraction of ls_sample can't be null");
+      }
+      constantFraction = true;
+      threshold = Hash.Hasher.threshold(PrimitiveObjectInspectorUtils.getDouble(fraction, (PrimitiveObjectInspector) arguments[2]));
+    }
+    return PrimitiveObjectInspectorFactory.writableBooleanObjectInspector;
+  }
+
+  @Override
+  public Object evaluate(DeferredObject[] arguments) throws HiveException {
+    Object id = arguments[0].get();
+    if (id == null) {
+      return null;
+    }
+    long fractionThreshold;
+    if (constantFraction) {
+      fractionThreshold = threshold;
+    } else {
+      Object fraction = arguments[2].get();
+      if (fraction == null) {
+        return null;
+      }
+      fractionThreshold = Hash.Hasher.threshold(PrimitiveObjectInspectorUtils.getDouble(fraction, (PrimitiveObjectInspector) inputOIs[2]));
+    }
+
+    if (hasher == null) {
+      hasher = new Hash.Hasher();
+    }
+    Object salt = arguments[1].get();
+    long hash = hasher.hash((Text) idConverter.convert(id), salt == null ? null : (Text) saltConverter.convert(salt));
+    result.set(hash < fractionThreshold);
+    return result;
+  }
+
+  @Override
+  public String getDisplayString(String[] children) {
+    return "ls_sample(" + children[0] + ", " + children[1] + ", " + children[2] + ")";
+  }
+}
@@ -0,0 +1,65 @@
+package com.livingsocial.hive.udf;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.hadoop.io.Text;
+
+/**
+ * Lower case hex of a MessageDigest over a Text, for Md5 and Sha1.  Keeps the
+ * digest and the output Text between rows.  ASCII strings are hashed straight
+ * from their bytes, anything else through String.getBytes() as it always has
+ * been, so the hashes don't change.
+ */
+public final class HexDigest {
+
+	private static final byte[] HEX = {
+		'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'
+	};
+
+	private final String algorithm;
+	private MessageDigest md;
+	private byte[] hex;
+	private final Text result = new Text();
+
+	public HexDigest(String algorithm) {
+		this.algorithm = algorithm;
+	}
+
+	/**
+	 * The hex digest of s, in a Text that is reused by the next call
+	 */
+	public Text hex(Text s) {
+		if (md == null) {
+			try {
+				md = MessageDigest.getInstance(algorithm);
+			} catch (NoSuchAlgorithmException nsae) {
+				throw new IllegalArgumentException(algorithm + " is not setup");
+			}
+			hex = new byte[md.getDigestLength() * 2];
+		}
+		byte[] bytes = s.getBytes();
+		int length = s.getLength();
+		if (isAscii(bytes, length)) {
+			md.update(bytes, 0, length);
+		} else {
+			md.update(s.toString().getBytes());
+		}
+		byte[] hash = md.digest();
+		for (int i = 0; i < hash.length; i++) {
+			hex[2 * i] = HEX[(hash[i] >> 4) & 0xf];
+			hex[2 * i + 1] = HEX[hash[i] & 0xf];
+		}
+		result.set(hex, 0, hex.length);
+		return result;
+	}
+
+	private static boolean isAscii(byte[] bytes, int length) {
+		for (int i = length - 1; i >= 0; i--) {
+			if (bytes[i] < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -1,17 +1,14 @@
 package com.livingsocial.hive.udf;
 
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
-import java.util.GregorianCalendar;
-import java.util.Date;
-
 import org.apache.hadoop.hive.ql.exec.Description;
 import org.apache.hadoop.hive.ql.exec.UDF;
 // import org.apache.hadoop.hive.serde2.io.TimestampWritable;
 import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.Text;
 
+import com.livingsocial.hive.CalendarTable;
+import com.livingsocial.hive.Utils;
+
 /**
  * IsoYearWeek.
  *
@@ -25,19 +22,8 @@ import org.apache.hadoop.io.Text;
     + "  8\n"
     + "  > SELECT _FUNC_('1980-12-31 12:59:59') FROM src LIMIT 1;\n" + "  1")
 public class IsoYearWeek extends UDF {
-  private final SimpleDateFormat formatter = new SimpleDateFormat("yyyy-MM-dd");
-  private final Calendar cal = Calendar.getInstance();
-  private final Calendar calNearThur = Calendar.getInstance();
-
   private IntWritable result = new IntWritable();
 
-  public IsoYearWeek() {
-    cal.setFirstDayOfWeek(Calendar.MONDAY);
-    cal.setMinimalDaysInFirstWeek(4);
-    calNearThur.setFirstDayOfWeek(Calendar.MONDAY);
-    calNearThur.setMinimalDaysInFirstWeek(4);
-  }
-
   /**
    * Get the week of the year from a date string.
    *
@@ -51,23 +37,13 @@ public class IsoYearWeek extends UDF {
     if (dateString == null) {
       return null;
     }
-    try {
-		Date date = formatter.parse(dateString.toString());
-		int checkYear;
-		
-		cal.setTime(date);
-		calNearThur.setTime(date);
-	
-		boolean isSunday = cal.get(Calendar.DAY_OF_WEEK)==Calendar.SUNDAY;
-		if (isSunday)
-		    calNearThur.add(Calendar.DAY_OF_MONTH,5-(cal.get(Calendar.DAY_OF_WEEK)+7));
-		else
-		    calNearThur.add(Calendar.DAY_OF_MONTH,5-(cal.get(Calendar.DAY_OF_WEEK)));
-		result.set(calNearThur.get(Calendar.YEAR));
-		return (result);
-    } catch (ParseException e) {
+    // The year of the Thursday in the same (Monday to Sunday) week
+    long day = Utils.stringToEpochDay(dateString);
+    if (day == Utils.NO_DATE) {
       return null;
     }
+    result.set(CalendarTable.isoYear(day));
+    return result;
   }
 
 //  public IntWritable evaluate(TimestampWritable t) {
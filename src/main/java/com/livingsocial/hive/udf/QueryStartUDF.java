@@ -0,0 +1,165 @@
+package com.livingsocial.hive.udf;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hive.ql.exec.MapredContext;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.session.SessionState;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector.PrimitiveCategory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.io.Text;
+
+/**
+ * The time the query started, formatted once and returned as a constant, for
+ * curdate and curdatetime.  Every row and every task of a query sees the same
+ * value, so a query running over midnight doesn't mix two dates, and being a
+ * constant lets Hive use it like a literal, e.g. for partition pruning.
+ *
+ * The start time is taken when the query is compiled and travels to the tasks
+ * with the plan, and in hiveswarm.query.start.time of the job configuration
+ * for plans that lose it.  Setting hiveswarm.query.start.time (millis since
+ * the epoch) pins it.  Tasks without either fall back on the time in the
+ * query id.
+ */
+public abstract class QueryStartUDF extends GenericUDF {
+
+  static final Log LOG = LogFactory.getLog(QueryStartUDF.class.getName());
+
+  /**
+   * Milliseconds since the epoch to use as the query's start time
+   */
+  public static final String QUERY_START_TIME = "hiveswarm.query.start.time";
+
+  // The value compiling the last query put in QUERY_START_TIME, which isn't pinned
+  private static final String COMPILED_START_TIME = "hiveswarm.query.start.time.compiled";
+
+  // Query ids look like user_yyyyMMddHHmm.._uuid, Hive 0.12 repeats the
+  // minutes where the seconds should go so only the minutes are used
+  private static final Pattern QUERY_ID_TIME = Pattern.compile("_(\\d{12})\\d{2}_");
+
+  // The query each session is compiling and its start time, so every
+  // instance of the function in a query gets the same time
+  private static final Map<SessionState, Started> STARTED = new WeakHashMap<SessionState, Started>();
+
+  private static class Started {
+    final String query;
+    final long at;
+
+    Started(String query, long at) {
+      this.query = query;
+      this.at = at;
+    }
+  }
+
+  // A bean property, the compile time value is serialized with the plan
+  private long queryStart = -1L;
+
+  private transient Text result;
+
+  public long getQueryStart() {
+    return queryStart;
+  }
+
+  public void setQueryStart(long queryStart) {
+    this.queryStart = queryStart;
+  }
+
+  protected abstract String name();
+
+  protected abstract String pattern();
+
+  @Override
+  public void configure(MapredContext context) {
+    if (queryStart < 0) {
+      queryStart = queryStart(context.getJobConf(), true);
+    }
+  }
+
+  @Override
+  public ObjectInspector initialize(ObjectInspector[] arguments) throws UDFArgumentException {
+    if (arguments.length != 0) {
+      throw new UDFArgumentLengthException(name() + " takes no arguments");
+    }
+    if (queryStart < 0) {
+      queryStart = compileStart();
+    }
+    result = new Text(new SimpleDateFormat(pattern()).format(new Date(queryStart)));
+    return PrimitiveObjectInspectorFactory.getPrimitiveWritableConstantObjectInspector(PrimitiveCategory.STRING, result);
+  }
+
+  @Override
+  public Object evaluate(DeferredObject[] arguments) throws HiveException {
+    return result;
+  }
+
+  @Override
+  public String getDisplayString(String[] children) {
+    return name() + "()";
+  }
+
+  private static long compileStart() {
+    SessionState session = SessionState.get();
+    if (session == null) {
+      return queryStart(null, false);
+    }
+    Configuration conf = session.getConf();
+    // The query id in the session is still the last query's while compiling,
+    // which tells a command apart from the same command run again
+    String query = session.getCmd() + "\u0000" + conf.get("hive.query.id");
+
+    synchronized (STARTED) {
+      Started started = STARTED.get(session);
+      if (started != null && started.query.equals(query)) {
+        return started.at;
+      }
+      String configured = conf.get(QUERY_START_TIME);
+      boolean pinned = configured != null && !configured.equals(conf.get(COMPILED_START_TIME));
+      long at = queryStart(pinned ? conf : null, false);
+      STARTED.put(session, new Started(query, at));
+
+      // Jobs copy the session configuration, so the tasks get the exact time too
+      String start = Long.toString(at);
+      conf.set(QUERY_START_TIME, start);
+      conf.set(COMPILED_START_TIME, start);
+      return at;
+    }
+  }
+
+  private static long queryStart(Configuration conf, boolean useQueryId) {
+    if (conf != null) {
+      String configured = conf.get(QUERY_START_TIME);
+      if (configured != null) {
+        try {
+          return Long.parseLong(configured.trim());
+        } catch (NumberFormatException e) {
+          LOG.warn("Ignoring " + QUERY_START_TIME + " of '" + configured + "', it has to be milliseconds since the epoch");
+        }
+      }
+      String queryId = conf.get("hive.query.id");
+      if (useQueryId && queryId != null) {
+        Matcher matcher = QUERY_ID_TIME.matcher(queryId);
+        if (matcher.find()) {
+          try {
+            return new SimpleDateFormat("yyyyMMddHHmm").parse(matcher.group(1)).getTime();
+          } catch (ParseException e) {
+            // use the current time
+          }
+        }
+      }
+    }
+    return System.currentTimeMillis();
+  }
+}
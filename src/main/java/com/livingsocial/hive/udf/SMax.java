@@ -1,13 +1,14 @@
 package com.livingsocial.hive.udf;
 
-import com.livingsocial.hive.Utils;
-
-import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFMax;
-
-import org.apache.hadoop.hive.ql.exec.UDAF;
-import org.apache.hadoop.hive.ql.exec.UDAFEvaluator;
 import org.apache.hadoop.hive.ql.exec.Description;
-import org.apache.hadoop.io.Text;
+import org.apache.hadoop.hive.ql.parse.SemanticException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFMax;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.AggregationType;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector.PrimitiveCategory;
+import org.apache.hadoop.hive.serde2.typeinfo.PrimitiveTypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
 
 
 @Description(
@@ -15,42 +16,24 @@ import org.apache.hadoop.io.Text;
     value = "_FUNC_(expr) - Returns the maximum value of expr, treating strings as dates"
     )
 public class SMax extends GenericUDAFMax {
-  static public class SMaxStringEvaluator implements UDAFEvaluator {
-    private Text mMax;
-    private boolean mEmpty;
 
-    public SMaxStringEvaluator() {
-      super();
-      init();
-    }
-
-    public void init() {
-      mMax = null;
-      mEmpty = true;
-    }
-
-    public boolean iterate(Text o) {
-      if (o != null) {
-        if (mEmpty) {
-          mMax = new Text(o);
-          mEmpty = false;
-        } else if (Utils.stringToTimestamp(mMax.toString()) < Utils.stringToTimestamp(o.toString())) {
-          mMax.set(o);
-        }
-      }
-      return true;
-    }
-
-    public Text terminatePartial() {
-      return mEmpty ? null : mMax;
-    }
-
-    public boolean merge(Text o) {
-      return iterate(o);
+  @Override
+  public GenericUDAFEvaluator getEvaluator(TypeInfo[] parameters) throws SemanticException {
+    if (parameters.length == 1 && parameters[0].getCategory() == ObjectInspector.Category.PRIMITIVE
+        && ((PrimitiveTypeInfo) parameters[0]).getPrimitiveCategory() == PrimitiveCategory.STRING) {
+      return new SMaxStringEvaluator();
     }
+    return super.getEvaluator(parameters);
+  }
 
-    public Text terminate() {
-      return mEmpty ? null : mMax;
+  /**
+   * The string with the later date
+   */
+  @AggregationType(estimable = true)
+  public static class SMaxStringEvaluator extends DateStringEvaluator {
+    @Override
+    protected boolean replaces(long ts, long current) {
+      return ts > current;
     }
   }
 }
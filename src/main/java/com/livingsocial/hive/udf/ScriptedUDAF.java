@@ -1,40 +1,54 @@
 package com.livingsocial.hive.udf;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import javax.script.Invocable;
 
 import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.MapredContext;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException;
 import org.apache.hadoop.hive.ql.metadata.HiveException;
 import org.apache.hadoop.hive.ql.parse.SemanticException;
 import org.apache.hadoop.hive.ql.udf.UDFType;
 import org.apache.hadoop.hive.ql.udf.generic.AbstractGenericUDAFResolver;
 import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.AbstractAggregationBuffer;
 import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.AggregationBuffer;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.AggregationType;
 import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFParameterInfo;
-import org.apache.hadoop.hive.ql.udf.generic.GenericUDFUtils;
-import org.apache.hadoop.hive.serde2.lazybinary.objectinspector.LazyBinaryObjectInspectorFactory;
 import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
-import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorConverters;
 import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
-import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.StructField;
+import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.BinaryObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.LongWritable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.livingsocial.hive.utils.ScriptFunction;
+import com.livingsocial.hive.utils.ScriptStateCodec;
 import com.livingsocial.hive.utils.ScriptingHelper;
 import com.livingsocial.hive.utils.ScriptingHelper.InitializationContainer;
 
 /**
- * This does not work, but is close.  See the FIXME comment in the init function
+ * Runs aggregations defined in a script.  The script, language and return type
+ * are kept by the evaluator so the merge and final steps can be run with only
+ * the partial aggregations, which carry a fingerprint of the script and the
+ * aggregation state serialized by ScriptStateCodec.
  */
 @UDFType(deterministic = false, stateful = true)
 @Description(name = "scriptedUDAF", value = "_FUNC_(script_to_run, language, return_type, script_arg1, script_arg_2, ....) " +
-    "- Runs custom UDAF code from the various functions in the script.  The required functions are:  iterate(agg_data, arg1, arg2, ...), partial(agg_data), convert_to_string(agg_data), convert_from_string(agg_data), merge(agg_data1, agg_data2), and terminate(agg_data).", 
+    "- Runs custom UDAF code from the various functions in the script.  The required functions are:  iterate(agg_data, arg1, arg2, ...), merge(agg_data1, agg_data2), and terminate(agg_data).  partial(agg_data), serialize(agg_data)/deserialize(bytes) and convert_to_string(agg_data)/convert_from_string(string) are optional.", 
     extended = "Function descriptions in the script:\n" +
                "    iterate receives an agg_data object and all the extra arguments in the UDAF call.  On first call agg_data will be null.  The script needs to build an appropriate object, accumulate data from the arguments, and return the agg object.  That agg object will be passed to later calls.  \n" +
-               "    partial receives the agg_data object from the iterate call and returns a partial aggregation (this can simply return agg_data)\n" +
-               "    convert_to_string receives the partial_results object from the partial call and returns a string\n" +
-               "    convert_from_string receives the string from convert_to_string and rebuilds the partial_results object\n" +
+               "    partial (optional) receives the agg_data object from the iterate call and returns a partial aggregation, without it agg_data is the partial aggregation\n" +
+               "    serialize (optional) receives the partial_results object and returns a byte array (or string), deserialize receives those bytes and rebuilds the partial_results object\n" +
+               "    convert_to_string/convert_from_string (optional) do the same with strings.  Without either pair the partial_results are stored in a compact binary form, which handles nil, booleans, integers including Bignums, floats, BigDecimals, strings, lists and maps\n" +
                "    merge receives 2 partial_results objects and returns a merged version with data from both\n" +
                "    terminate receives a merged partial_results object and returns the final return object type.  The object returned needs to adhere to the return_type specified in the _FUNC_ call\n" +
                "\nLanguage is the javax.script engine name.  Additional languages can be added by adding the jar implementing the scripting engine ('add jar groovy-all.jar;' or similar)\n" +
@@ -92,167 +106,330 @@ public class ScriptedUDAF extends AbstractGenericUDAFResolver {
   @Override
   public GenericUDAFEvaluator getEvaluator(GenericUDAFParameterInfo info)
       throws SemanticException {
-    return new ScriptedUDAFEvaluator();
+    ObjectInspector[] parameters = info.getParameterObjectInspectors();
+    if (parameters.length < 4) {
+      throw new UDFArgumentLengthException(
+          "At least 4 arguments are required, the script to run, the script language, the return type, and at least one argument, got "
+              + parameters.length + " arguments passed in");
+    }
+
+    // The constant arguments are kept in the evaluator, which is how they get
+    // to the reduce side where only the partial aggregations are passed in
+    return new ScriptedUDAFEvaluator(ScriptingHelper.getConstString(parameters[0], 1),
+        ScriptingHelper.getConstString(parameters[1], 2), ScriptingHelper.getConstString(parameters[2], 3));
   }
 
-  private static class MyAggBuffer implements AggregationBuffer {
+  private static class MyAggBuffer extends AbstractAggregationBuffer {
     public Object data;
+    private final ScriptedUDAFEvaluator evaluator;
+
+    // Size bookkeeping, see ScriptedUDAFEvaluator.estimatedSize
+    int updates;
+    int measuredUpdates;
+    long measuredSize;
+
+    MyAggBuffer(ScriptedUDAFEvaluator evaluator) {
+      this.evaluator = evaluator;
+    }
+
+    @Override
+    public int estimate() {
+      try {
+        return (int) Math.min(Integer.MAX_VALUE, evaluator.estimatedSize(this));
+      } catch (HiveException e) {
+        throw new RuntimeException(e);
+      }
+    }
   }
 
+  @AggregationType(estimable = true)
   public static class ScriptedUDAFEvaluator extends GenericUDAFEvaluator {
-    private InitializationContainer initData;
-
-    GenericUDFUtils.ReturnObjectInspectorResolver outputResolver;
-    
-    // Store all intermediate data in a string/string map
-    ObjectInspector intermediateInternal = ObjectInspectorFactory.getStandardMapObjectInspector(
-        PrimitiveObjectInspectorFactory.javaStringObjectInspector, PrimitiveObjectInspectorFactory.javaStringObjectInspector);
-    ObjectInspector intermediateExternal = LazyBinaryObjectInspectorFactory.getLazyBinaryMapObjectInspector(
-        PrimitiveObjectInspectorFactory.writableStringObjectInspector, PrimitiveObjectInspectorFactory.writableStringObjectInspector);
-    
-    private ObjectInspectorConverters.Converter intermediateConverterInput = ObjectInspectorConverters.getConverter(intermediateExternal, intermediateInternal);
+    // Serialized states are a lot smaller than the script objects they come from
+    private static final int IN_MEMORY_FACTOR = 4;
+
+    // Bean properties so the plan serialization carries them to every task
+    private String script;
+    private String language;
+    private String returnType;
+
+    private transient InitializationContainer initData;
+    private transient ScriptFunction iterateFunction;
+    private transient ScriptFunction mergeFunction;
+    private transient ScriptFunction terminateFunction;
+    // null when the script doesn't define them
+    private transient ScriptFunction partialFunction;
+    private transient ScriptFunction estimateFunction;
+
+    // Partial aggregations are a struct of the script fingerprint and the serialized state
+    private transient long fingerprint;
+    private transient ScriptStateCodec codec;
+    private transient StructObjectInspector partialOi;
+    private transient StructField partialFingerprintField;
+    private transient StructField partialStateField;
+    private transient Object[] partialResult;
+
+    // Aggregations usually keep what they are handed, so arguments are copied unless the job asks for lazy views
+    private transient boolean copyArguments = true;
+
+    public ScriptedUDAFEvaluator() {
+    }
+
+    public ScriptedUDAFEvaluator(String script, String language, String returnType) {
+      this.script = script;
+      this.language = language;
+      this.returnType = returnType;
+    }
+
+    public String getScript() {
+      return script;
+    }
+
+    public void setScript(String script) {
+      this.script = script;
+    }
+
+    public String getLanguage() {
+      return language;
+    }
+
+    public void setLanguage(String language) {
+      this.language = language;
+    }
+
+    public String getReturnType() {
+      return returnType;
+    }
+
+    public void setReturnType(String returnType) {
+      this.returnType = returnType;
+    }
+
+    @Override
+    public void configure(MapredContext context) {
+      ScriptingHelper.configure(context.getJobConf());
+      copyArguments = ScriptingHelper.copyArguments(context.getJobConf(), true);
+    }
 
     @Override
     public ObjectInspector init(Mode m, ObjectInspector[] parameters)
         throws HiveException {
       super.init(m, parameters);
-      LOG.info("Mode: " + m.name(), new Exception());
-      
-      
-      
+      LOG.debug("Mode: " + m.name());
+      if (initData != null) {
+        // Initialized before, give that engine back
+        initData.close();
+      }
+
       if (m == Mode.PARTIAL1 || m == Mode.COMPLETE) {
         // This is getting the full arg list
-        if (initData == null) initData = ScriptingHelper.initialize(parameters);
-        
+        initData = ScriptingHelper.initialize(parameters);
+        initData.copyArguments = copyArguments;
       } else {
-        // This is getting only intermediate data so there's nothing to do here
-        if (initData == null) {
-          initData = new ScriptingHelper.InitializationContainer();
+        // This is getting only partial aggregations, everything else comes from the constant arguments
+        if (script == null || language == null || returnType == null) {
+          throw new HiveException("The script, language and return type were not passed on to the " + m + " aggregation step");
         }
-      }
-      
-      // Fall back error check
-      if (initData == null) {
-        throw new HiveException("Something went wrong while trying to initialize things");
+        initData = ScriptingHelper.initialize(script, language, returnType);
+        partialOi = (StructObjectInspector) parameters[0];
+        partialFingerprintField = partialOi.getStructFieldRef("fingerprint");
+        partialStateField = partialOi.getStructFieldRef("state");
       }
 
+      fingerprint = ScriptingHelper.fingerprint(initData.language, ScriptingHelper.loadScript(initData.script));
+      iterateFunction = null;
+
       if (m == Mode.PARTIAL1 || m == Mode.PARTIAL2) {
-        outputResolver = ScriptingHelper.buildReturnResolver(intermediateExternal);
-      } else if (m == Mode.COMPLETE) {
-        outputResolver = ScriptingHelper.buildReturnResolver(initData.outputOi);
-      } else {
-        // FIXME: 
-        // This does not work because there is no way to know what the return type should be
-        // If there is a way to pass the constant OI type from the original input to the 
-        // mode=FINAL call then this can work.  
-        throw new IllegalStateException("This does not work, see the comment in the code");
+        partialResult = new Object[] { new LongWritable(), new BytesWritable() };
+        ArrayList<String> fieldNames = new ArrayList<String>();
+        ArrayList<ObjectInspector> fieldOIs = new ArrayList<ObjectInspector>();
+        fieldNames.add("fingerprint");
+        fieldNames.add("state");
+        fieldOIs.add(PrimitiveObjectInspectorFactory.writableLongObjectInspector);
+        fieldOIs.add(PrimitiveObjectInspectorFactory.writableBinaryObjectInspector);
+        return ObjectInspectorFactory.getStandardStructObjectInspector(fieldNames, fieldOIs);
+      }
+      return initData.outputJavaOi;
+    }
+
+    /**
+     * Gets an engine and looks up the script's functions, this waits for the
+     * first row so that compiling the query doesn't start a script engine.
+     */
+    private void prepare() throws HiveException {
+      if (iterateFunction != null) {
+        return;
       }
-      return outputResolver.get();
+      Invocable engine = initData.getEngine();
+      codec = ScriptStateCodec.forScript(engine);
+      mergeFunction = ScriptingHelper.function(engine, "merge");
+      terminateFunction = ScriptingHelper.function(engine, "terminate");
+      partialFunction = ScriptingHelper.hasFunction(engine, "partial")
+          ? ScriptingHelper.function(engine, "partial") : null;
+      estimateFunction = ScriptingHelper.hasFunction(engine, "estimate_size")
+          ? ScriptingHelper.function(engine, "estimate_size") : null;
+      iterateFunction = ScriptingHelper.function(engine, "iterate");
     }
 
     @Override
     public AggregationBuffer getNewAggregationBuffer() throws HiveException {
-      return new MyAggBuffer();
+      return new MyAggBuffer(this);
     }
 
     @Override
     public void reset(AggregationBuffer agg) throws HiveException {
-      ((MyAggBuffer)agg).data = null;
+      MyAggBuffer myAgg = (MyAggBuffer) agg;
+      myAgg.data = null;
+      myAgg.updates = 0;
+      myAgg.measuredUpdates = 0;
+      myAgg.measuredSize = 0;
     }
 
     @Override
     public void iterate(AggregationBuffer agg, Object[] arguments)
         throws HiveException {
-      LOG.info("Start iterate");
       MyAggBuffer data = (MyAggBuffer) agg;
+      prepare();
 
       Object[] args = new Object[1+arguments.length - initData.argOffset];
       for (int i = 0; i < args.length-1; i++) {
-        args[i+1] = ObjectInspectorUtils.copyToStandardJavaObject(arguments[i+initData.argOffset], initData.argumentOIs[i]);
+        args[i+1] = initData.scriptArgument(i, arguments[i+initData.argOffset]);
       }
       args[0] = data.data;
 
       try {
-        data.data = initData.engine.invokeFunction("iterate", args);
+        data.data = iterateFunction.call(args);
       } catch (Exception e) {
         throw new HiveException("Error invoking the iterate function", e);
       }
-      LOG.info("End iterate");
+      data.updates++;
     }
 
     @Override
     public Object terminatePartial(AggregationBuffer agg) throws HiveException {
-      LOG.info("Start terminatePartial");
       MyAggBuffer myAgg = (MyAggBuffer) agg;
 
-      String rtn = null;
-      try {
-        rtn = initData.engine.invokeFunction("convert_to_string", (Object)myAgg.data).toString();
-      } catch (Exception e) {
-        throw new HiveException("Error invoking the partial function", e);
-      }
-      
-      Map<String,String> out = new HashMap<String,String>();
-      out.put("data", rtn);
-      out.put("script", initData.script);
-      out.put("language", initData.language);
-      out.put("returntype", initData.returnType);
-      
-      try {
-        Object tmp = outputResolver.convertIfNecessary(out, intermediateInternal);
-        LOG.info("End terminatePartial");
-        return tmp;
-      } catch (Exception e) {
-        e.printStackTrace(System.err);
-        throw new HiveException("bad stuff", e);
+      ((LongWritable) partialResult[0]).set(fingerprint);
+      if (myAgg.data == null) {
+        partialResult[1] = null;
+        return partialResult;
       }
+      prepare();
+
+      codec.encode(partial(myAgg.data));
+
+      BytesWritable bytes = partialResult[1] != null ? (BytesWritable) partialResult[1] : new BytesWritable();
+      bytes.set(codec.getData(), 0, codec.getLength());
+      partialResult[1] = bytes;
+      return partialResult;
     }
 
     @Override
     public void merge(AggregationBuffer agg, Object partial)
         throws HiveException {
-      
-      LOG.info("Merging a " + partial.getClass().getName());
+      if (partial == null) {
+        return;
+      }
       MyAggBuffer myAgg = (MyAggBuffer) agg;
-      
-      @SuppressWarnings("unchecked")
-      Map<String,String> converted = (Map<String,String>) intermediateConverterInput.convert(partial);
 
-      try {
-        String script = (String) converted.get("script");
-        String language = (String) converted.get("language");
-        if (initData.engine == null) {
-        initData.engine = ScriptingHelper.initializeEngine(language, script);
+      Object partialFingerprint = partialOi.getStructFieldData(partial, partialFingerprintField);
+      if (partialFingerprint == null || PrimitiveObjectInspectorUtils.getLong(partialFingerprint,
+          (PrimitiveObjectInspector) partialFingerprintField.getFieldObjectInspector()) != fingerprint) {
+        throw new HiveException("Got a partial aggregation from a different script than " + initData.script);
       }
-        String data = (String) converted.get("data");
-        Object convertedData = initData.engine.invokeFunction("convert_from_string", data);
 
-      try {
-        myAgg.data = initData.engine.invokeFunction("merge", myAgg.data, convertedData);
-      } catch (Exception e) {
-        throw new HiveException("Error invoking the merge function", e);
-      }
-      } catch (Exception e) {
-        e.printStackTrace();
-        throw new HiveException("bad stuff");
+      Object state = partialOi.getStructFieldData(partial, partialStateField);
+      if (state == null) {
+        return;
       }
-      LOG.info("End merge");
+      prepare();
+      BytesWritable bytes = ((BinaryObjectInspector) partialStateField.getFieldObjectInspector()).getPrimitiveWritableObject(state);
+      Object convertedData = codec.decode(bytes.getBytes(), 0, bytes.getLength());
+
+      myAgg.data = merge(myAgg.data, convertedData);
+      myAgg.updates++;
     }
 
     @Override
     public Object terminate(AggregationBuffer agg) throws HiveException {
-      LOG.info("Start terminate");
       MyAggBuffer myAgg = (MyAggBuffer) agg;
+      prepare();
 
+      Object out;
       try {
-        Object out = initData.engine.invokeFunction("terminate", myAgg.data);
-        
-        LOG.info("End terminate");
-        return outputResolver.convertIfNecessary(out, outputResolver.get());
+        out = terminateFunction.call(myAgg.data);
       } catch (Exception e) {
         throw new HiveException("Error invoking the terminate function", e);
       }
-      
+      try {
+        return initData.outputConverter.convert(out);
+      } catch (RuntimeException e) {
+        throw new HiveException("The terminate function didn't return a " + initData.returnType, e);
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      // The engine goes back to the pool, prepare leases one again for a later row
+      iterateFunction = null;
+      mergeFunction = null;
+      terminateFunction = null;
+      partialFunction = null;
+      estimateFunction = null;
+      codec = null;
+      if (initData != null) {
+        try {
+          initData.close();
+        } catch (HiveException e) {
+          throw new IOException(e);
+        }
+      }
+    }
+
+    private Object partial(Object state) throws HiveException {
+      if (partialFunction == null) {
+        return state;
+      }
+      try {
+        return partialFunction.call(state);
+      } catch (Exception e) {
+        throw new HiveException("Error invoking the partial function", e);
+      }
+    }
+
+    private Object merge(Object state, Object partial) throws HiveException {
+      try {
+        return mergeFunction.call(state, partial);
+      } catch (Exception e) {
+        throw new HiveException("Error invoking the merge function", e);
+      }
+    }
+
+    /**
+     * Estimated in memory size of the buffer, which is what Hive's map side
+     * hash aggregation goes by to flush its groups before the heap fills up.
+     * Measuring means calling the script's estimate_size function or
+     * serializing the state, so it is only done each time the number of
+     * updates doubles and scaled in between.
+     */
+    long estimatedSize(MyAggBuffer agg) throws HiveException {
+      if (agg.data == null) {
+        return 0;
+      }
+      if (agg.measuredUpdates == 0 || agg.updates >= 2 * agg.measuredUpdates) {
+        prepare();
+        if (estimateFunction != null) {
+          try {
+            agg.measuredSize = ((Number) estimateFunction.call(agg.data)).longValue();
+          } catch (Exception e) {
+            throw new HiveException("Error invoking the estimate_size function", e);
+          }
+        } else {
+          codec.encode(partial(agg.data));
+          agg.measuredSize = (long) codec.getLength() * IN_MEMORY_FACTOR;
+        }
+        agg.measuredUpdates = Math.max(1, agg.updates);
+      }
+      return agg.measuredSize * Math.max(1, agg.updates) / agg.measuredUpdates;
     }
   }
 }
@@ -1,16 +1,17 @@
 package com.livingsocial.hive.udf;
 
-import javax.script.Invocable;
+import java.io.IOException;
 
 import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.MapredContext;
 import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
 import org.apache.hadoop.hive.ql.metadata.HiveException;
 import org.apache.hadoop.hive.ql.parse.SemanticException;
 import org.apache.hadoop.hive.ql.udf.UDFType;
 import org.apache.hadoop.hive.ql.udf.generic.GenericUDF;
 import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
-import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils;
 
+import com.livingsocial.hive.utils.ScriptFunction;
 import com.livingsocial.hive.utils.ScriptingHelper;
 
 @UDFType(deterministic = false, stateful = true)
@@ -18,7 +19,7 @@ import com.livingsocial.hive.utils.ScriptingHelper;
     "- Returns the specified return_type (hive style types) from the evaluate function of the script.", 
     extended =  "Function descriptions in the script:\n" +
         "    evaluate receives all the extra script_arguments passed in the _FUNC_ call and returns an object adhering to the defined return_type \n" +
-        "\nLanguage is the javax.script engine name.  Additional languages can be added by adding the jar implementing the scripting engine ('add jar groovy-all.jar;' or similar)\n" +
+        "\nLanguage is the javax.script engine name, or 'java' for a java class body whose public methods are the functions.  Additional languages can be added by adding the jar implementing the scripting engine ('add jar groovy-all.jar;' or similar)\n" +
         "Return_type is a hive style data definition ('string', 'bigint', 'array<map<string,string>>', ...) \n\n" +
         "Example:\n > -- Gather complex data combining groups and individual rows without joins \n" +
         "  select person_id, purchase_data['time'], purchase_data['diff'], \n" +
@@ -65,8 +66,16 @@ import com.livingsocial.hive.utils.ScriptingHelper;
 public class ScriptedUDF extends GenericUDF {
 
   private ScriptingHelper.InitializationContainer initData;
-  
-  private Invocable engine;
+  private ScriptFunction evaluateFunction;
+
+  // Arguments are passed as lazy views unless the job asks for copies
+  private boolean copyArguments = false;
+
+  @Override
+  public void configure(MapredContext context) {
+    ScriptingHelper.configure(context.getJobConf());
+    copyArguments = ScriptingHelper.copyArguments(context.getJobConf(), false);
+  }
   
   @Override
   public ObjectInspector initialize(ObjectInspector[] arguments)
@@ -77,26 +86,48 @@ public class ScriptedUDF extends GenericUDF {
     } catch (SemanticException e) {
       throw new UDFArgumentException(e);
     }
+    initData.copyArguments = copyArguments;
     
-    return initData.returnOIResolver.get();
+    // outputConverter produces the standard java objects of the return type
+    return initData.outputJavaOi;
   }
   
   @Override
   public Object evaluate(DeferredObject[] arguments) throws HiveException {
-    if (engine == null) engine = ScriptingHelper.initializeEngine(initData.language, initData.script);
-    
     Object[] args = new Object[arguments.length - initData.argOffset];
     for (int i = 0; i < args.length; i++) {
-      args[i] = ObjectInspectorUtils.copyToStandardJavaObject(arguments[i+initData.argOffset].get(), initData.argumentOIs[i]);
+      args[i] = initData.scriptArgument(i, arguments[i+initData.argOffset].get());
     }
     
+    if (evaluateFunction == null) {
+      // The engine is only started once there are rows to evaluate
+      evaluateFunction = ScriptingHelper.function(initData.getEngine(), "evaluate");
+    }
+
     Object out;
     try {
-      out = engine.invokeFunction("evaluate", args);
+      out = evaluateFunction.call(args);
     } catch (Exception e) {
       throw new HiveException("Error invoking the evaluate function", e);
     }
-    return initData.returnOIResolver.convertIfNecessary(out, initData.outputOi);
+    try {
+      return initData.outputConverter.convert(out);
+    } catch (RuntimeException e) {
+      throw new HiveException("The evaluate function didn't return a " + initData.returnType, e);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    // The engine goes back to the pool, a later row leases one again
+    evaluateFunction = null;
+    if (initData != null) {
+      try {
+        initData.close();
+      } catch (HiveException e) {
+        throw new IOException(e);
+      }
+    }
   }
 
   @Override
@@ -0,0 +1,206 @@
+package com.livingsocial.hive.udf;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF;
+import org.apache.hadoop.hive.serde2.objectinspector.ConstantObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspector;
+import org.apache.hadoop.io.Text;
+
+import com.livingsocial.hive.CalendarTable;
+import com.livingsocial.hive.Utils;
+import com.livingsocial.hive.ZoneTransitions;
+
+/**
+ * Converts UTC times to the wall clock time of a zone.  The zone's offset
+ * changes are looked up in a ZoneTransitions table and the result is written
+ * straight into a reused Text, so converting a row doesn't touch
+ * Calendar, TimeZone or SimpleDateFormat.
+ */
+@Description(name = "to_local_time", value = "_FUNC_(utc_time, zone) - Returns the 'yyyy-MM-dd HH:mm:ss' wall clock time in zone of a UTC time",
+    extended = "utc_time is either seconds since the epoch, as unix_liberal_timestamp returns, or a 'yyyy-MM-dd[ HH:mm:ss]' UTC time string.  " +
+        "zone is a Java time zone id like 'America/New_York'.  Returns null if either is null, the string can't be parsed or the zone is unknown.\n" +
+        "Example:\n" +
+        "  > SELECT _FUNC_('2012-07-04 16:30:00', 'America/New_York') FROM src LIMIT 1;\n" +
+        "  2012-07-04 12:30:00")
+public class ToLocalTime extends GenericUDF {
+
+  private PrimitiveObjectInspector timeOI;
+  private boolean stringTime;
+  private StringObjectInspector zoneOI;
+
+  // The zone of a constant zone argument, or of the last row's
+  private ZoneTransitions zone;
+  private final Text zoneName = new Text();
+
+  private SimpleDateFormat dateFormat;
+  private SimpleDateFormat datetimeFormat;
+
+  private final byte[] buffer = new byte[19];
+  private final Text result = new Text();
+
+  @Override
+  public ObjectInspector initialize(ObjectInspector[] arguments) throws UDFArgumentException {
+    if (arguments.length != 2) {
+      throw new UDFArgumentLengthException("to_local_time takes a UTC time and a zone, got " + arguments.length + " arguments");
+    }
+    if (arguments[0].getCategory() != ObjectInspector.Category.PRIMITIVE) {
+      throw new UDFArgumentTypeException(0, "to_local_time takes epoch seconds or a UTC time string, got " + arguments[0].getTypeName());
+    }
+    timeOI = (PrimitiveObjectInspector) arguments[0];
+    switch (timeOI.getPrimitiveCategory()) {
+    case STRING:
+      stringTime = true;
+      break;
+    case BYTE:
+    case SHORT:
+    case INT:
+    case LONG:
+      stringTime = false;
+      break;
+    default:
+      throw new UDFArgumentTypeException(0, "to_local_time takes epoch seconds or a UTC time string, got " + arguments[0].getTypeName());
+    }
+
+    if (!(arguments[1] instanceof StringObjectInspector)) {
+      throw new UDFArgumentTypeException(1, "to_local_time takes a zone id string, got " + arguments[1].getTypeName());
+    }
+    zoneOI = (StringObjectInspector) arguments[1];
+    if (arguments[1] instanceof ConstantObjectInspector) {
+      Object constant = ((ConstantObjectInspector) arguments[1]).getWritableConstantValue();
+      if (constant != null) {
+        String id = constant.toString();
+        zone = ZoneTransitions.forZone(id);
+        if (zone == null) {
+          throw new UDFArgumentException("Unknown time zone '" + id + "'");
+        }
+        zoneName.set(id);
+      }
+    }
+    return PrimitiveObjectInspectorFactory.writableStringObjectInspector;
+  }
+
+  @Override
+  public Object evaluate(DeferredObject[] arguments) throws HiveException {
+    Object time = arguments[0].get();
+    Object zoneValue = arguments[1].get();
+    if (time == null || zoneValue == null) {
+      return null;
+    }
+
+    Text id = zoneOI.getPrimitiveWritableObject(zoneValue);
+    if (zone == null || !id.equals(zoneName)) {
+      zoneName.set(id);
+      zone = ZoneTransitions.forZone(id.toString());
+    }
+    if (zone == null) {
+      return null;
+    }
+
+    long seconds;
+    if (stringTime) {
+      seconds = utcSeconds(((StringObjectInspector) timeOI).getPrimitiveWritableObject(time));
+      if (seconds == Utils.NO_TIMESTAMP) {
+        return null;
+      }
+    } else {
+      seconds = PrimitiveObjectInspectorUtils.getLong(time, timeOI);
+    }
+
+    long millis = seconds * 1000;
+    long local = seconds + floorDiv(zone.offset(millis), 1000);
+    long epochDay = floorDiv(local, 86400);
+    int year = CalendarTable.year(epochDay);
+    if (year < 1000 || year > 9999) {
+      result.set(format(millis));
+      return result;
+    }
+    int secondOfDay = (int) (local - epochDay * 86400);
+    write(0, year, 4);
+    buffer[4] = '-';
+    write(5, CalendarTable.month(epochDay), 2);
+    buffer[7] = '-';
+    write(8, CalendarTable.dayOfMonth(epochDay), 2);
+    buffer[10] = ' ';
+    write(11, secondOfDay / 3600, 2);
+    buffer[13] = ':';
+    write(14, secondOfDay / 60 % 60, 2);
+    buffer[16] = ':';
+    write(17, secondOfDay % 60, 2);
+    result.set(buffer, 0, buffer.length);
+    return result;
+  }
+
+  // Seconds since the epoch of a UTC time string, or NO_TIMESTAMP
+  private long utcSeconds(Text text) {
+    byte[] bytes = text.getBytes();
+    int length = text.getLength();
+    if (length == 10 || length == 19) {
+      long seconds = Utils.canonicalUtcTimestamp(bytes, 0, length);
+      if (seconds != Utils.NO_TIMESTAMP) {
+        return seconds;
+      }
+    }
+    // Same formats and leniency as Utils.stringToTimestamp, in UTC
+    String date = text.toString();
+    SimpleDateFormat format;
+    if (date.indexOf(' ') == -1) {
+      if (dateFormat == null) {
+        dateFormat = utcFormat("yyyy-MM-dd");
+      }
+      format = dateFormat;
+    } else {
+      if (datetimeFormat == null) {
+        datetimeFormat = utcFormat("yyyy-MM-dd HH:mm:ss");
+      }
+      format = datetimeFormat;
+    }
+    try {
+      return floorDiv(format.parse(date).getTime(), 1000);
+    } catch (ParseException e) {
+      return Utils.NO_TIMESTAMP;
+    }
+  }
+
+  // Years that don't fit in four digits
+  private String format(long millis) {
+    SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+    format.setTimeZone(zone.getZone());
+    return format.format(new Date(millis));
+  }
+
+  private static SimpleDateFormat utcFormat(String pattern) {
+    SimpleDateFormat format = new SimpleDateFormat(pattern);
+    format.setTimeZone(TimeZone.getTimeZone("UTC"));
+    return format;
+  }
+
+  private void write(int start, int value, int digits) {
+    for (int i = start + digits - 1; i >= start; i--) {
+      buffer[i] = (byte) ('0' + value % 10);
+      value /= 10;
+    }
+  }
+
+  private static long floorDiv(long x, long y) {
+    long q = x / y;
+    return (x % y != 0 && ((x ^ y) < 0)) ? q - 1 : q;
+  }
+
+  @Override
+  public String getDisplayString(String[] children) {
+    return "to_local_time(" + children[0] + ", " + children[1] + ")";
+  }
+}
@@ -1,9 +1,6 @@
 package com.livingsocial.hive.udf;
 
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.Calendar;
-import java.util.Date;
 
 import org.apache.hadoop.hive.ql.exec.Description;
 import org.apache.hadoop.hive.ql.exec.UDF;
@@ -11,6 +8,9 @@ import org.apache.hadoop.hive.serde2.io.TimestampWritable;
 import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.Text;
 
+import com.livingsocial.hive.CalendarTable;
+import com.livingsocial.hive.Utils;
+
 /**
  * 
  * UDFQuarter
@@ -21,8 +21,6 @@ import org.apache.hadoop.io.Text;
 @Description(name = "quarter", value = "_FUNC_(date or timestamp) -" +
 		" Returns the quarter of the year corresponding to date or timestamp")
 public class UDFQuarter extends UDF {
-	private final SimpleDateFormat formatter = new SimpleDateFormat(
-			"yyyy-MM-dd");
 	private final Calendar calendar = Calendar.getInstance();
 	private IntWritable result = new IntWritable();
 
@@ -42,15 +40,11 @@ public class UDFQuarter extends UDF {
 		if (dateString == null) {
 			return null;
 		}
-		try {
-			Date date = formatter.parse(dateString.toString());
-			calendar.setTime(date);
-			int month = calendar.get(Calendar.MONTH) + 1;
-			result = getQuarter(month);
-
-		} catch (ParseException e) {
+		long day = Utils.stringToEpochDay(dateString);
+		if (day == Utils.NO_DATE) {
 			return null;
 		}
+		result.set(CalendarTable.quarter(day));
 		return result;
 
 	}
@@ -1,49 +1,180 @@
 package com.livingsocial.hive.udf;
 
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+
+import com.livingsocial.hive.Utils;
 
 import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
 import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
 import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.serde2.objectinspector.ConstantObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
-import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
-import org.apache.hadoop.hive.ql.udf.generic.GenericUDFUnixTimeStamp;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF;
 import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Text;
 
+/**
+ * unix_timestamp with the format picked by the length of the string.  The
+ * usual yyyy-MM-dd, yyyy-MM-dd HH:mm:ss and yyyy-MM-dd HH:mm:ss.S strings are
+ * read straight from the bytes, anything else goes through the same lenient
+ * SimpleDateFormat patterns unix_timestamp would use, then through the extra
+ * patterns given as arguments.
+ */
 @Description(
 	     name = "unix_liberal_timestamp",
-	     value = "_FUNC_(str) - gets unix timestamp in either yyyy-MM-dd HH:mm:ss or yyyy-MM-dd format - returns null if input is null",
-	     extended = "Example:\n" +
-	     "  > SELECT a.* FROM srcpart a WHERE _FUNC_ (a.hr) < unix_timestamp() LIMIT 1;\n"
+	     value = "_FUNC_(str[, pattern, ...]) - gets unix timestamp in either yyyy-MM-dd HH:mm:ss or yyyy-MM-dd format - returns null if input is null",
+	     extended = "Strings longer than yyyy-MM-dd HH:mm:ss are read as yyyy-MM-dd HH:mm:ss.S.  Strings that don't parse are tried with " +
+	     "the optional constant SimpleDateFormat patterns in order, and return null if none of them parse either.\n" +
+	     "Example:\n" +
+	     "  > SELECT a.* FROM srcpart a WHERE _FUNC_ (a.hr) < unix_timestamp() LIMIT 1;\n" +
+	     "  > SELECT _FUNC_(created_at, 'MM/dd/yyyy HH:mm') FROM src;\n"
 	     )
-public class UnixLiberalTimestamp extends GenericUDFUnixTimeStamp {
+public class UnixLiberalTimestamp extends GenericUDF {
+
+    private static final String DATE = "yyyy-MM-dd";
+    private static final String DATETIME = "yyyy-MM-dd HH:mm:ss";
+    private static final String DATETIME_MILLIS = "yyyy-MM-dd HH:mm:ss.S";
 
     private transient StringObjectInspector stringOI;
+    private transient String[] extraPatterns;
+
+    // Built when first needed, most columns never need them
+    private transient SimpleDateFormat dateFormat;
+    private transient SimpleDateFormat datetimeFormat;
+    private transient SimpleDateFormat datetimeMillisFormat;
+    private transient SimpleDateFormat[] extraFormats;
+
+    private final LongWritable result = new LongWritable();
 
     public ObjectInspector initialize(ObjectInspector[] arguments) throws UDFArgumentException {
-        if (arguments.length != 1) {
-            throw new UDFArgumentLengthException(getName().toUpperCase() + " only takes 1 arguments: String");
+        if (arguments.length < 1) {
+            throw new UDFArgumentLengthException("UNIX_LIBERAL_TIMESTAMP takes a String and optionally extra date patterns");
+        }
+        if (!(arguments[0] instanceof StringObjectInspector)) {
+            throw new UDFArgumentTypeException(0, "UNIX_LIBERAL_TIMESTAMP takes a String, got " + arguments[0].getTypeName());
         }
-        super.initialize(new ObjectInspector[]{arguments[0],
-                                               PrimitiveObjectInspectorFactory.getPrimitiveJavaObjectInspector(PrimitiveObjectInspector.PrimitiveCategory.STRING)});
-
         stringOI = (StringObjectInspector) arguments[0];
+
+        extraPatterns = new String[arguments.length - 1];
+        for (int i = 1; i < arguments.length; i++) {
+            if (!(arguments[i] instanceof StringObjectInspector) || !(arguments[i] instanceof ConstantObjectInspector)) {
+                throw new UDFArgumentTypeException(i, "The date patterns of UNIX_LIBERAL_TIMESTAMP have to be constant strings");
+            }
+            Object pattern = ((ConstantObjectInspector) arguments[i]).getWritableConstantValue();
+            if (pattern == null) {
+                throw new UDFArgumentTypeException(i, "The date patterns of UNIX_LIBERAL_TIMESTAMP can't be null");
+            }
+            extraPatterns[i - 1] = pattern.toString();
+            try {
+                new SimpleDateFormat(extraPatterns[i - 1]);
+            } catch (IllegalArgumentException e) {
+                throw new UDFArgumentException("Invalid date pattern '" + extraPatterns[i - 1] + "': " + e.getMessage());
+            }
+        }
         return PrimitiveObjectInspectorFactory.writableLongObjectInspector;
     }
 
     public Object evaluate(DeferredObject[] arguments) throws HiveException {
-        String datestring = stringOI.getPrimitiveJavaObject(arguments[0].get());
-        if (datestring == null) return null;
-        if (datestring.length() == 19)      // timestamp
-            return super.evaluate(new DeferredObject[]{arguments[0],
-                                                       new DeferredJavaObject("yyyy-MM-dd HH:mm:ss")});
-        else if (datestring.length() > 19)  // timestamp with milliseconds
-            return super.evaluate(new DeferredObject[]{arguments[0],
-                                                       new DeferredJavaObject("yyyy-MM-dd HH:mm:ss.S")});
-        else                                // date
-            return super.evaluate(new DeferredObject[]{arguments[0],
-                                                       new DeferredJavaObject("yyyy-MM-dd")});
+        Object value = arguments[0].get();
+        if (value == null) return null;
+        Text text = stringOI.getPrimitiveWritableObject(value);
+        if (text == null) return null;
+
+        long timestamp = readCanonical(text.getBytes(), text.getLength());
+        if (timestamp != Utils.NO_TIMESTAMP) {
+            result.set(timestamp);
+            return result;
+        }
+        return parse(text.toString());
+    }
+
+    /**
+     * The fast path, the timestamp of a canonical string in the layout its
+     * length picks or NO_TIMESTAMP.  Only ASCII strings get through here, so
+     * the length in bytes is the length in characters.
+     */
+    private static long readCanonical(byte[] bytes, int length) {
+        if (length == 19) {                 // timestamp
+            return Utils.canonicalTimestamp(bytes, 0, 19);
+        } else if (length > 19) {           // timestamp with milliseconds
+            if (bytes[19] != '.') {
+                return Utils.NO_TIMESTAMP;
+            }
+            // Like SimpleDateFormat's S, every digit counts towards the milliseconds
+            int end = 20;
+            int millis = 0;
+            while (end < length && end < 23 && isDigit(bytes[end])) {
+                millis = millis * 10 + (bytes[end++] - '0');
+            }
+            if (end == 20 || (end < length && isDigit(bytes[end]))) {
+                // No digits, or more than a second's worth that could roll over an offset change
+                return Utils.NO_TIMESTAMP;
+            }
+            long seconds = Utils.canonicalTimestamp(bytes, 0, 19);
+            if (seconds == Utils.NO_TIMESTAMP) {
+                return Utils.NO_TIMESTAMP;
+            }
+            // Truncated towards zero as Date.getTime() / 1000 is
+            return (seconds * 1000 + millis) / 1000;
+        } else if (length >= 10 && (length == 10 || !isDigit(bytes[10]))) {  // date
+            return Utils.canonicalTimestamp(bytes, 0, 10);
+        }
+        return Utils.NO_TIMESTAMP;
+    }
+
+    // Everything else, with the formats unix_timestamp would use
+    private Object parse(String datestring) {
+        SimpleDateFormat format;
+        if (datestring.length() == 19) {
+            if (datetimeFormat == null) datetimeFormat = new SimpleDateFormat(DATETIME);
+            format = datetimeFormat;
+        } else if (datestring.length() > 19) {
+            if (datetimeMillisFormat == null) datetimeMillisFormat = new SimpleDateFormat(DATETIME_MILLIS);
+            format = datetimeMillisFormat;
+        } else {
+            if (dateFormat == null) dateFormat = new SimpleDateFormat(DATE);
+            format = dateFormat;
+        }
+        try {
+            result.set(format.parse(datestring).getTime() / 1000);
+            return result;
+        } catch (ParseException e) {
+            // try the extra patterns
+        }
+
+        if (extraFormats == null) {
+            extraFormats = new SimpleDateFormat[extraPatterns.length];
+            for (int i = 0; i < extraPatterns.length; i++) {
+                extraFormats[i] = new SimpleDateFormat(extraPatterns[i]);
+            }
+        }
+        for (SimpleDateFormat extra : extraFormats) {
+            try {
+                result.set(extra.parse(datestring).getTime() / 1000);
+                return result;
+            } catch (ParseException e) {
+                // try the next one
+            }
+        }
+        return null;
+    }
+
+    private static boolean isDigit(byte c) {
+        return c >= '0' && c <= '9';
+    }
+
+    @Override
+    public String getDisplayString(String[] children) {
+        StringBuilder sb = new StringBuilder("unix_liberal_timestamp(");
+        for (int i = 0; i < children.length; i++) {
+            if (i > 0) sb.append(", ");
+            sb.append(children[i]);
+        }
+        return sb.append(")").toString();
     }
 }
@@ -0,0 +1,176 @@
+package com.livingsocial.hive.udtf;
+
+import java.util.ArrayList;
+
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDTF;
+import org.apache.hadoop.hive.serde2.objectinspector.ConstantObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspector;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+
+import com.livingsocial.hive.CalendarTable;
+import com.livingsocial.hive.Utils;
+
+/**
+ * Every day, week or hour from one date to another, for filling in the gaps
+ * of a time series without joining against a calendar table.  The two dates
+ * are parsed once per input row; the output rows are counted up from there
+ * with the calendar fields coming from CalendarTable, and written into the
+ * same forwarded objects each time.
+ */
+@Description(
+    name = "date_range",
+    value = "_FUNC_(start, end[, step]) - Returns a row (date, epoch_day) for every step from start through end",
+    extended = "start and end are 'yyyy-MM-dd' or 'yyyy-MM-dd HH:mm:ss' strings, step is 'day' (the default), 'week' or 'hour'.  " +
+        "Dates are 'yyyy-MM-dd' for days and weeks and 'yyyy-MM-dd HH:00:00' for hours, epoch_day counts days since 1970-01-01.  " +
+        "Nothing is returned if either date is null or not a date, or end is before start.\n" +
+        "Example:\n" +
+        "  > SELECT date_range('2012-12-30', '2013-01-01') AS (day, epoch_day) FROM src LIMIT 3;\n" +
+        "  2012-12-30  15704\n" +
+        "  2012-12-31  15705\n" +
+        "  2013-01-01  15706"
+)
+public class DateRange extends GenericUDTF {
+
+  private static final int DAY = 0;
+  private static final int WEEK = 1;
+  private static final int HOUR = 2;
+
+  private StringObjectInspector startOI;
+  private StringObjectInspector endOI;
+  private int step = DAY;
+
+  private final byte[] buffer = new byte[19];
+  private final Text date = new Text();
+  private final LongWritable epochDay = new LongWritable();
+  private final Object[] row = { date, epochDay };
+
+  @Override
+  public StructObjectInspector initialize(ObjectInspector[] args) throws UDFArgumentException {
+    if (args.length < 2 || args.length > 3) {
+      throw new UDFArgumentLengthException("date_range takes a start date, an end date and optionally a step");
+    }
+    for (int i = 0; i < 2; i++) {
+      if (!(args[i] instanceof StringObjectInspector)) {
+        throw new UDFArgumentTypeException(i, "date_range takes date strings, got " + args[i].getTypeName());
+      }
+    }
+    startOI = (StringObjectInspector) args[0];
+    endOI = (StringObjectInspector) args[1];
+
+    if (args.length == 3) {
+      if (!(args[2] instanceof StringObjectInspector) || !(args[2] instanceof ConstantObjectInspector)) {
+        throw new UDFArgumentTypeException(2, "The step of date_range has to be a constant 'day', 'week' or 'hour'");
+      }
+      Object value = ((ConstantObjectInspector) args[2]).getWritableConstantValue();
+      String name = value == null ? "" : value.toString().trim().toLowerCase();
+      if (name.equals("day")) {
+        step = DAY;
+      } else if (name.equals("week")) {
+        step = WEEK;
+      } else if (name.equals("hour")) {
+        step = HOUR;
+      } else {
+        throw new UDFArgumentTypeException(2, "The step of date_range has to be 'day', 'week' or 'hour', got '" + value + "'");
+      }
+    }
+
+    ArrayList<String> fieldNames = new ArrayList<String>();
+    ArrayList<ObjectInspector> fieldOIs = new ArrayList<ObjectInspector>();
+    fieldNames.add("date");
+    fieldNames.add("epoch_day");
+    fieldOIs.add(PrimitiveObjectInspectorFactory.writableStringObjectInspector);
+    fieldOIs.add(PrimitiveObjectInspectorFactory.writableLongObjectInspector);
+    return ObjectInspectorFactory.getStandardStructObjectInspector(fieldNames, fieldOIs);
+  }
+
+  @Override
+  public void process(Object[] o) throws HiveException {
+    if (o[0] == null || o[1] == null) {
+      return;
+    }
+    Text startText = startOI.getPrimitiveWritableObject(o[0]);
+    Text endText = endOI.getPrimitiveWritableObject(o[1]);
+    if (startText == null || endText == null) {
+      return;
+    }
+    long start = Utils.stringToEpochDay(startText);
+    long end = Utils.stringToEpochDay(endText);
+    if (start == Utils.NO_DATE || end == Utils.NO_DATE) {
+      return;
+    }
+
+    if (step == HOUR) {
+      long day = start;
+      int hour = hour(startText);
+      int lastHour = hour(endText);
+      writeDate(day);
+      while (day < end || (day == end && hour <= lastHour)) {
+        write(11, hour, 2);
+        date.set(buffer, 0, 19);
+        epochDay.set(day);
+        forward(row);
+        if (++hour == 24) {
+          hour = 0;
+          writeDate(++day);
+        }
+      }
+    } else {
+      int days = step == WEEK ? 7 : 1;
+      for (long day = start; day <= end; day += days) {
+        writeDate(day);
+        date.set(buffer, 0, 10);
+        epochDay.set(day);
+        forward(row);
+      }
+    }
+  }
+
+  // The hour of a canonical date time, midnight for anything else
+  private static int hour(Text text) {
+    byte[] bytes = text.getBytes();
+    if (text.getLength() >= 19 && bytes[10] == ' ' && bytes[13] == ':') {
+      int tens = bytes[11] - '0';
+      int ones = bytes[12] - '0';
+      if (tens >= 0 && tens <= 2 && ones >= 0 && ones <= 9 && tens * 10 + ones < 24) {
+        return tens * 10 + ones;
+      }
+    }
+    return 0;
+  }
+
+  private void writeDate(long day) {
+    write(0, CalendarTable.year(day), 4);
+    buffer[4] = '-';
+    write(5, CalendarTable.month(day), 2);
+    buffer[7] = '-';
+    write(8, CalendarTable.dayOfMonth(day), 2);
+    buffer[10] = ' ';
+    buffer[13] = ':';
+    buffer[14] = '0';
+    buffer[15] = '0';
+    buffer[16] = ':';
+    buffer[17] = '0';
+    buffer[18] = '0';
+  }
+
+  private void write(int start, int value, int digits) {
+    for (int i = start + digits - 1; i >= start; i--) {
+      buffer[i] = (byte) ('0' + value % 10);
+      value /= 10;
+    }
+  }
+
+  @Override
+  public void close() throws HiveException {
+  }
+}
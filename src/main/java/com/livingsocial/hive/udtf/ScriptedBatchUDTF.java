@@ -0,0 +1,166 @@
+package com.livingsocial.hive.udtf;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.script.Invocable;
+
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.MapredContext;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.parse.SemanticException;
+import org.apache.hadoop.hive.ql.udf.UDFType;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDTF;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils.ObjectInspectorCopyOption;
+import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
+
+import com.livingsocial.hive.utils.ScriptFunction;
+import com.livingsocial.hive.utils.ScriptingHelper;
+
+/**
+ * Batched variant of ScriptedUDF.  A GenericUDF has to hand back a value for
+ * every row, so batching needs a table generating function: rows are buffered
+ * and passed to the script's evaluate_batch function together, and the results
+ * are forwarded afterwards in the same order.  The script arguments are
+ * forwarded in front of the result so callers can carry key columns through.
+ */
+@UDFType(deterministic = false, stateful = true)
+@Description(name = "scripted_batch", value = "_FUNC_(script_to_run, language, return_type, script_arg1, script_arg_2, ....) " +
+    "- Returns one row (script_arg1, script_arg2, ..., result) per input row, where result is computed by the script in batches of rows.",
+    extended = "Function descriptions in the script:\n" +
+        "    evaluate_batch receives a list of rows, each row being the list of script_arguments passed in the _FUNC_ call, " +
+        "and returns a list with one object adhering to the defined return_type per row, in the same order \n" +
+        "    evaluate is used one row at a time, as in scriptedUDF, if the script doesn't define evaluate_batch \n" +
+        "\nThe batch size defaults to 1000 rows and can be changed with 'set " + ScriptedBatchUDTF.BATCH_SIZE + "=N;'\n\n" +
+        "Example:\n" +
+        "  > select _FUNC_('\n" +
+        "  def evaluate_batch(rows)\n" +
+        "    rows.map { |r| r[1] * 2 }\n" +
+        "  end', 'ruby', 'bigint', id, amount) as (id, amount, doubled) from purchases;\n")
+public class ScriptedBatchUDTF extends GenericUDTF {
+
+  public static final String BATCH_SIZE = "hiveswarm.scripted.batch.size";
+  private static final int DEFAULT_BATCH_SIZE = 1000;
+
+  private ScriptingHelper.InitializationContainer initData;
+
+  private int batchSize = DEFAULT_BATCH_SIZE;
+  private boolean batched;
+  private ScriptFunction function;
+  private List<List<Object>> buffer;
+  private Object[] forwardObj;
+
+  @Override
+  public void configure(MapredContext context) {
+    ScriptingHelper.configure(context.getJobConf());
+    batchSize = Math.max(1, context.getJobConf().getInt(BATCH_SIZE, DEFAULT_BATCH_SIZE));
+  }
+
+  @Override
+  public StructObjectInspector initialize(ObjectInspector[] arguments)
+      throws UDFArgumentException {
+
+    try {
+      initData = ScriptingHelper.initialize(arguments);
+    } catch (SemanticException e) {
+      throw new UDFArgumentException(e);
+    }
+    buffer = new ArrayList<List<Object>>(batchSize);
+    forwardObj = new Object[initData.argumentOIs.length + 1];
+
+    ArrayList<String> fieldNames = new ArrayList<String>();
+    ArrayList<ObjectInspector> fieldOIs = new ArrayList<ObjectInspector>();
+    for (int i = 0; i < initData.argumentOIs.length; i++) {
+      fieldNames.add("arg" + i);
+      fieldOIs.add(ObjectInspectorUtils.getStandardObjectInspector(initData.argumentOIs[i], ObjectInspectorCopyOption.JAVA));
+    }
+    fieldNames.add("result");
+    fieldOIs.add(initData.outputJavaOi);
+    return ObjectInspectorFactory.getStandardStructObjectInspector(fieldNames, fieldOIs);
+  }
+
+  @Override
+  public void process(Object[] o) throws HiveException {
+    if (function == null) {
+      // The engine is only started once there are rows to process
+      Invocable engine = initData.getEngine();
+      batched = ScriptingHelper.hasFunction(engine, "evaluate_batch");
+      function = ScriptingHelper.function(engine, batched ? "evaluate_batch" : "evaluate");
+    }
+
+    // Hive reuses the row objects, so the arguments have to be copied before being held on to
+    Object[] args = new Object[o.length - initData.argOffset];
+    for (int i = 0; i < args.length; i++) {
+      args[i] = ObjectInspectorUtils.copyToStandardObject(o[i+initData.argOffset], initData.argumentOIs[i], ObjectInspectorCopyOption.JAVA);
+    }
+
+    if (!batched) {
+      Object out;
+      try {
+        out = function.call(args);
+      } catch (Exception e) {
+        throw new HiveException("Error invoking the evaluate function", e);
+      }
+      forwardRow(Arrays.asList(args), out);
+      return;
+    }
+
+    buffer.add(Arrays.asList(args));
+    if (buffer.size() >= batchSize) {
+      flush();
+    }
+  }
+
+  @Override
+  public void close() throws HiveException {
+    if (buffer != null && !buffer.isEmpty()) {
+      flush();
+    }
+    // The engine goes back to the pool, a later row leases one again
+    function = null;
+    if (initData != null) {
+      initData.close();
+    }
+  }
+
+  private void flush() throws HiveException {
+    Object out;
+    try {
+      out = function.call(buffer);
+    } catch (Exception e) {
+      throw new HiveException("Error invoking the evaluate_batch function", e);
+    }
+    if (!(out instanceof List) || ((List<?>) out).size() != buffer.size()) {
+      throw new HiveException("evaluate_batch must return a list with one result per row, got "
+          + (out instanceof List ? ((List<?>) out).size() + " results for " + buffer.size() + " rows" : out));
+    }
+
+    List<?> results = (List<?>) out;
+    for (int i = 0; i < buffer.size(); i++) {
+      forwardRow(buffer.get(i), results.get(i));
+    }
+    buffer.clear();
+  }
+
+  private void forwardRow(List<Object> args, Object out) throws HiveException {
+    for (int i = 0; i < args.size(); i++) {
+      forwardObj[i] = args.get(i);
+    }
+    try {
+      forwardObj[args.size()] = initData.outputConverter.convert(out);
+    } catch (RuntimeException e) {
+      throw new HiveException("The script didn't return a " + initData.returnType, e);
+    }
+    forward(forwardObj);
+  }
+
+  @Override
+  public String toString() {
+    return "scripted_batch";
+  }
+}
@@ -0,0 +1,138 @@
+package com.livingsocial.hive.udtf;
+
+import javax.script.Invocable;
+
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.MapredContext;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.parse.SemanticException;
+import org.apache.hadoop.hive.ql.udf.UDFType;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDTF;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
+
+import com.livingsocial.hive.utils.ScriptFunction;
+import com.livingsocial.hive.utils.ScriptingHelper;
+
+/**
+ * Table generating function defined by a script.  Instead of returning every
+ * output row at once (and exploding an array afterwards) the script is handed
+ * an emitter and calls emit(row) for each row, which is converted and
+ * forwarded right away, so nothing is held in memory between rows.
+ */
+@UDFType(deterministic = false, stateful = true)
+@Description(name = "scripted_udtf", value = "_FUNC_(script_to_run, language, return_type, script_arg1, script_arg_2, ....) " +
+    "- Returns the rows the script emits, return_type has to be a struct describing the output columns.",
+    extended = "Function descriptions in the script:\n" +
+        "    process receives an emitter followed by all the extra script_arguments passed in the _FUNC_ call, " +
+        "and calls emitter.emit(row) for every output row, row being a list of the column values or a map by column name \n" +
+        "    finish, if defined, is called with the emitter after the last input row, for emitting anything left over (tasks without input rows skip it) \n\n" +
+        "Example:\n" +
+        "  > select _FUNC_('\n" +
+        "  def process(out, id, purchases)\n" +
+        "    purchases.each_with_index { |p, i| out.emit([id, i, p]) }\n" +
+        "  end', 'ruby', 'struct<id:bigint,position:int,purchase:string>', person_id, purchases) as (id, position, purchase)\n" +
+        "  from people;\n")
+public class ScriptedUDTF extends GenericUDTF {
+
+  /**
+   * Handed to the script, each emitted row is forwarded immediately
+   */
+  public class Emitter {
+    public void emit(Object row) throws HiveException {
+      Object converted;
+      try {
+        converted = initData.outputConverter.convert(row);
+      } catch (RuntimeException e) {
+        throw new HiveException("The script emitted a row that isn't a " + initData.returnType, e);
+      }
+      if (converted == null) {
+        throw new HiveException("The script emitted a null row");
+      }
+      forward(converted);
+    }
+  }
+
+  private ScriptingHelper.InitializationContainer initData;
+  private ScriptFunction processFunction;
+  private ScriptFunction finishFunction;
+  private final Emitter emitter = new Emitter();
+  private Object[] args;
+
+  // Arguments are passed as lazy views unless the job asks for copies
+  private boolean copyArguments = false;
+
+  @Override
+  public void configure(MapredContext context) {
+    ScriptingHelper.configure(context.getJobConf());
+    copyArguments = ScriptingHelper.copyArguments(context.getJobConf(), false);
+  }
+
+  @Override
+  public StructObjectInspector initialize(ObjectInspector[] arguments)
+      throws UDFArgumentException {
+
+    try {
+      initData = ScriptingHelper.initialize(arguments);
+    } catch (SemanticException e) {
+      throw new UDFArgumentException(e);
+    }
+    if (initData.outputOi.getCategory() != ObjectInspector.Category.STRUCT) {
+      throw new UDFArgumentException("The return type of scripted_udtf has to be a struct of the output columns, got " + initData.returnType);
+    }
+    initData.copyArguments = copyArguments;
+
+    args = new Object[initData.argumentOIs.length + 1];
+    args[0] = emitter;
+
+    return (StructObjectInspector) initData.outputJavaOi;
+  }
+
+  @Override
+  public void process(Object[] o) throws HiveException {
+    if (processFunction == null) {
+      // The engine is only started once there are rows to process
+      Invocable engine = initData.getEngine();
+      processFunction = ScriptingHelper.function(engine, "process");
+      finishFunction = ScriptingHelper.hasFunction(engine, "finish")
+          ? ScriptingHelper.function(engine, "finish") : null;
+    }
+
+    for (int i = 1; i < args.length; i++) {
+      args[i] = initData.scriptArgument(i - 1, o[i - 1 + initData.argOffset]);
+    }
+    try {
+      processFunction.call(args);
+    } catch (HiveException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new HiveException("Error invoking the process function", e);
+    }
+  }
+
+  @Override
+  public void close() throws HiveException {
+    try {
+      if (finishFunction != null) {
+        finishFunction.call(emitter);
+      }
+    } catch (HiveException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new HiveException("Error invoking the finish function", e);
+    } finally {
+      // The engine goes back to the pool, a later row leases one again
+      processFunction = null;
+      finishFunction = null;
+      if (initData != null) {
+        initData.close();
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "scripted_udtf";
+  }
+}
@@ -0,0 +1,276 @@
+package com.livingsocial.hive.utils;
+
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.hadoop.hive.serde2.objectinspector.ListObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.MapObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.StructField;
+import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
+
+/**
+ * Lazy java.util views over hive objects for passing arguments to scripts.
+ *
+ * ObjectInspectorUtils.copyToStandardJavaObject deep copies the whole argument
+ * before the script sees any of it.  These views look the same to a script
+ * (lists for arrays and structs, maps for maps, plain java objects for
+ * primitives) but only convert the elements the script actually reads.
+ * Writing to a view copies that one container first, so scripts that modify
+ * their input still work.
+ *
+ * The views point into the row objects hive hands the function, which hive
+ * reuses for the next row.  Scripts that hold on to their arguments after the
+ * call returns need real copies instead (see ScriptingHelper.ARGUMENTS_MODE).
+ */
+public final class ArgumentViews {
+
+  private ArgumentViews() {}
+
+  /**
+   * Returns a script friendly view of data as described by oi
+   */
+  public static Object view(Object data, ObjectInspector oi) {
+    if (data == null) {
+      return null;
+    }
+    switch (oi.getCategory()) {
+    case PRIMITIVE:
+      return ((PrimitiveObjectInspector) oi).getPrimitiveJavaObject(data);
+    case LIST:
+      return new ListView(data, (ListObjectInspector) oi);
+    case MAP:
+      return new MapView(data, (MapObjectInspector) oi);
+    case STRUCT:
+      return new StructView(data, (StructObjectInspector) oi);
+    default:
+      return ObjectInspectorUtils.copyToStandardJavaObject(data, oi);
+    }
+  }
+
+  /**
+   * Base for the list shaped views, switches over to a real ArrayList the
+   * first time the list is modified.
+   */
+  private static abstract class CopyOnWriteList extends AbstractList<Object> {
+    private ArrayList<Object> copy;
+
+    abstract int viewSize();
+    abstract Object viewGet(int index);
+
+    @Override
+    public int size() {
+      return copy != null ? copy.size() : viewSize();
+    }
+
+    @Override
+    public Object get(int index) {
+      if (copy != null) {
+        return copy.get(index);
+      }
+      if (index < 0 || index >= viewSize()) {
+        throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + viewSize());
+      }
+      return viewGet(index);
+    }
+
+    @Override
+    public Object set(int index, Object element) {
+      return copy().set(index, element);
+    }
+
+    @Override
+    public void add(int index, Object element) {
+      copy().add(index, element);
+      modCount++;
+    }
+
+    @Override
+    public Object remove(int index) {
+      modCount++;
+      return copy().remove(index);
+    }
+
+    private ArrayList<Object> copy() {
+      if (copy == null) {
+        int size = viewSize();
+        ArrayList<Object> tmp = new ArrayList<Object>(size);
+        for (int i = 0; i < size; i++) {
+          tmp.add(viewGet(i));
+        }
+        copy = tmp;
+      }
+      return copy;
+    }
+  }
+
+  private static final class ListView extends CopyOnWriteList {
+    private final Object data;
+    private final ListObjectInspector oi;
+    private final ObjectInspector elementOi;
+
+    ListView(Object data, ListObjectInspector oi) {
+      this.data = data;
+      this.oi = oi;
+      this.elementOi = oi.getListElementObjectInspector();
+    }
+
+    @Override
+    int viewSize() {
+      return oi.getListLength(data);
+    }
+
+    @Override
+    Object viewGet(int index) {
+      return view(oi.getListElement(data, index), elementOi);
+    }
+  }
+
+  private static final class StructView extends CopyOnWriteList {
+    private final Object data;
+    private final StructObjectInspector oi;
+    private final List<? extends StructField> fields;
+
+    StructView(Object data, StructObjectInspector oi) {
+      this.data = data;
+      this.oi = oi;
+      this.fields = oi.getAllStructFieldRefs();
+    }
+
+    @Override
+    int viewSize() {
+      return fields.size();
+    }
+
+    @Override
+    Object viewGet(int index) {
+      StructField field = fields.get(index);
+      return view(oi.getStructFieldData(data, field), field.getFieldObjectInspector());
+    }
+  }
+
+  private static final class MapView extends AbstractMap<Object, Object> {
+    private final Object data;
+    private final MapObjectInspector oi;
+    private final ObjectInspector keyOi;
+    private final ObjectInspector valueOi;
+
+    // converted keys to the unconverted values, only built if a lookup is done
+    private HashMap<Object, Object> index;
+    private HashMap<Object, Object> copy;
+    private Set<Map.Entry<Object, Object>> entries;
+
+    MapView(Object data, MapObjectInspector oi) {
+      this.data = data;
+      this.oi = oi;
+      this.keyOi = oi.getMapKeyObjectInspector();
+      this.valueOi = oi.getMapValueObjectInspector();
+    }
+
+    @Override
+    public int size() {
+      return copy != null ? copy.size() : oi.getMapSize(data);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+      return copy != null ? copy.containsKey(key) : index().containsKey(key);
+    }
+
+    @Override
+    public Object get(Object key) {
+      if (copy != null) {
+        return copy.get(key);
+      }
+      return view(index().get(key), valueOi);
+    }
+
+    @Override
+    public Object put(Object key, Object value) {
+      return copy().put(key, value);
+    }
+
+    @Override
+    public Object remove(Object key) {
+      return copy().remove(key);
+    }
+
+    @Override
+    public void clear() {
+      copy().clear();
+    }
+
+    @Override
+    public Set<Map.Entry<Object, Object>> entrySet() {
+      if (copy != null) {
+        return copy.entrySet();
+      }
+      if (entries == null) {
+        entries = new AbstractSet<Map.Entry<Object, Object>>() {
+          @Override
+          public int size() {
+            return MapView.this.size();
+          }
+
+          @Override
+          public Iterator<Map.Entry<Object, Object>> iterator() {
+            if (copy != null) {
+              return copy.entrySet().iterator();
+            }
+            final Iterator<? extends Map.Entry<?, ?>> raw = oi.getMap(data).entrySet().iterator();
+            return new Iterator<Map.Entry<Object, Object>>() {
+              public boolean hasNext() {
+                return raw.hasNext();
+              }
+
+              public Map.Entry<Object, Object> next() {
+                Map.Entry<?, ?> entry = raw.next();
+                return new SimpleImmutableEntry<Object, Object>(
+                    view(entry.getKey(), keyOi), view(entry.getValue(), valueOi));
+              }
+
+              public void remove() {
+                throw new UnsupportedOperationException("Remove entries through the map instead");
+              }
+            };
+          }
+        };
+      }
+      return entries;
+    }
+
+    private HashMap<Object, Object> index() {
+      if (index == null) {
+        Map<?, ?> raw = oi.getMap(data);
+        HashMap<Object, Object> tmp = new HashMap<Object, Object>(raw.size() * 2);
+        for (Map.Entry<?, ?> entry : raw.entrySet()) {
+          tmp.put(view(entry.getKey(), keyOi), entry.getValue());
+        }
+        index = tmp;
+      }
+      return index;
+    }
+
+    private HashMap<Object, Object> copy() {
+      if (copy == null) {
+        Map<?, ?> raw = oi.getMap(data);
+        HashMap<Object, Object> tmp = new HashMap<Object, Object>(raw.size() * 2);
+        for (Map.Entry<?, ?> entry : raw.entrySet()) {
+          tmp.put(view(entry.getKey(), keyOi), view(entry.getValue(), valueOi));
+        }
+        copy = tmp;
+        index = null;
+      }
+      return copy;
+    }
+  }
+}
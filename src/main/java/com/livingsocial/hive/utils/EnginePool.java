@@ -0,0 +1,197 @@
+package com.livingsocial.hive.utils;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.script.Invocable;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+
+/**
+ * Engines with one script loaded, leased to one function instance at a time.
+ * Script engines aren't thread safe, but building one per function instance
+ * is slow, so instances lease an engine from here and hand it back when they
+ * are closed, for the next instance (a later task in a reused JVM, another
+ * query in HiveServer2) to reuse.
+ *
+ * Hive doesn't close functions everywhere they run (fetch tasks and local
+ * mode skip it), so a lease is also given back once its owner is garbage
+ * collected.  Idle engines are kept in several stripes picked by thread id,
+ * so threads coming and going don't all contend on one queue, and are
+ * dropped after being idle for a while.  The number of pooled engines is
+ * capped; when all are leased an extra one is built right away and not kept
+ * afterwards.
+ */
+public class EnginePool {
+
+  private static final Log LOG = LogFactory.getLog(EnginePool.class.getName());
+
+  /**
+   * Most engines kept per script, defaults to the number of processors
+   */
+  public static final String MAX_ENGINES = "hiveswarm.script.engines.max";
+
+  /**
+   * Milliseconds an unused engine is kept around, defaults to 5 minutes
+   */
+  public static final String IDLE_MILLIS = "hiveswarm.script.engines.idle.ms";
+  static final long DEFAULT_IDLE_MILLIS = 5 * 60 * 1000L;
+
+  private static class IdleEngine {
+    final Invocable engine;
+    final long since;
+
+    IdleEngine(Invocable engine, long since) {
+      this.engine = engine;
+      this.since = since;
+    }
+  }
+
+  // Holds the engine past its owner, so an owner that is never closed still returns it
+  private static class Lease extends WeakReference<Object> {
+    final Invocable engine;
+
+    Lease(Object owner, Invocable engine, ReferenceQueue<Object> queue) {
+      super(owner, queue);
+      this.engine = engine;
+    }
+  }
+
+  private final String language;
+  private final String scriptText;
+  private final int maxEngines;
+  private final long idleMillis;
+
+  // Most recently returned first, so the warmest engines get reused
+  private final LinkedBlockingDeque<IdleEngine>[] stripes;
+  private final AtomicInteger engines = new AtomicInteger();
+  private final Map<Invocable, Lease> leases = Collections.synchronizedMap(new IdentityHashMap<Invocable, Lease>());
+  private final ReferenceQueue<Object> abandoned = new ReferenceQueue<Object>();
+
+  @SuppressWarnings("unchecked")
+  EnginePool(String language, String scriptText, int maxEngines, long idleMillis) {
+    this.language = language;
+    this.scriptText = scriptText;
+    this.maxEngines = Math.max(1, maxEngines);
+    this.idleMillis = idleMillis;
+    this.stripes = new LinkedBlockingDeque[Math.min(this.maxEngines, 16)];
+    for (int i = 0; i < stripes.length; i++) {
+      stripes[i] = new LinkedBlockingDeque<IdleEngine>();
+    }
+  }
+
+  /**
+   * Leases an engine to owner until it is released, or owner is garbage
+   * collected.  The engine must only be used by one thread at a time.
+   */
+  public Invocable acquire(Object owner) throws HiveException {
+    reclaim();
+    Invocable engine = pollIdle();
+    if (engine == null) {
+      if (engines.incrementAndGet() > maxEngines) {
+        LOG.warn("All " + maxEngines + " " + language + " engines for the script are in use, building an extra one");
+      }
+      engine = build();
+    }
+    leases.put(engine, new Lease(owner, engine, abandoned));
+    return engine;
+  }
+
+  /**
+   * Hands back an engine leased with acquire
+   */
+  public void release(Invocable engine) {
+    Lease lease = leases.remove(engine);
+    if (lease == null) {
+      // Not leased from here, or already reclaimed
+      return;
+    }
+    lease.clear();
+    checkin(engine);
+  }
+
+  /**
+   * Returns the engines of owners that were collected without releasing them
+   */
+  private void reclaim() {
+    Reference<?> ref;
+    while ((ref = abandoned.poll()) != null) {
+      Lease lease = (Lease) ref;
+      if (leases.remove(lease.engine) == lease) {
+        LOG.info("Reclaiming a " + language + " engine from a function that wasn't closed");
+        checkin(lease.engine);
+      }
+    }
+  }
+
+  private void checkin(Invocable engine) {
+    long now = System.currentTimeMillis();
+    for (LinkedBlockingDeque<IdleEngine> stripe : stripes) {
+      evict(stripe, now);
+    }
+    if (engines.get() > maxEngines) {
+      // An extra engine built while the pool was exhausted
+      engines.decrementAndGet();
+    } else {
+      stripe().offerFirst(new IdleEngine(engine, now));
+    }
+  }
+
+  private Invocable build() throws HiveException {
+    try {
+      return ScriptingHelper.buildEngine(language, scriptText);
+    } catch (HiveException e) {
+      engines.decrementAndGet();
+      throw e;
+    } catch (RuntimeException e) {
+      engines.decrementAndGet();
+      throw e;
+    }
+  }
+
+  /**
+   * Takes an idle engine, from the thread's own stripe if possible, and
+   * drops engines that have been idle for too long along the way
+   */
+  private Invocable pollIdle() {
+    long now = System.currentTimeMillis();
+    int start = stripeIndex();
+    Invocable found = null;
+    for (int i = 0; i < stripes.length; i++) {
+      LinkedBlockingDeque<IdleEngine> stripe = stripes[(start + i) % stripes.length];
+      evict(stripe, now);
+      if (found == null) {
+        IdleEngine idle = stripe.pollFirst();
+        if (idle != null) {
+          found = idle.engine;
+        }
+      }
+    }
+    return found;
+  }
+
+  private void evict(LinkedBlockingDeque<IdleEngine> stripe, long now) {
+    IdleEngine oldest;
+    while ((oldest = stripe.peekLast()) != null && now - oldest.since > idleMillis) {
+      if (stripe.removeLastOccurrence(oldest)) {
+        engines.decrementAndGet();
+      }
+    }
+  }
+
+  private LinkedBlockingDeque<IdleEngine> stripe() {
+    return stripes[stripeIndex()];
+  }
+
+  private int stripeIndex() {
+    return (int) (Thread.currentThread().getId() % stripes.length);
+  }
+}
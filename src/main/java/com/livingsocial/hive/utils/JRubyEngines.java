@@ -0,0 +1,46 @@
+package com.livingsocial.hive.utils;
+
+import java.lang.reflect.Constructor;
+
+import javax.script.ScriptEngine;
+
+import org.jruby.embed.LocalContextScope;
+import org.jruby.embed.LocalVariableBehavior;
+import org.jruby.embed.ScriptingContainer;
+import org.jruby.embed.jsr223.JRubyEngine;
+import org.jruby.embed.jsr223.JRubyEngineFactory;
+import org.jruby.embed.util.SystemPropertyCatcher;
+
+/**
+ * Builds JRuby script engines with a runtime of their own.  JRuby's JSR 223
+ * factory only takes the runtime scope from the JVM wide
+ * org.jruby.embed.localcontext.scope property and defaults to one runtime
+ * shared by every engine, so this builds the container the way the factory
+ * does with the scope set on it instead.  Kept apart from ScriptingHelper so
+ * a missing JRuby jar only matters to ruby scripts.
+ */
+class JRubyEngines {
+
+  private static final Constructor<JRubyEngine> CONSTRUCTOR;
+  static {
+    try {
+      CONSTRUCTOR = JRubyEngine.class.getDeclaredConstructor(ScriptingContainer.class, JRubyEngineFactory.class);
+      CONSTRUCTOR.setAccessible(true);
+    } catch (NoSuchMethodException e) {
+      throw new IllegalStateException("Unsupported JRuby version", e);
+    }
+  }
+
+  private static final JRubyEngineFactory FACTORY = new JRubyEngineFactory();
+
+  static ScriptEngine newEngine() throws Exception {
+    // The scope property still wins when it is set explicitly
+    ScriptingContainer container = new ScriptingContainer(
+        SystemPropertyCatcher.getScope(LocalContextScope.SINGLETHREAD),
+        SystemPropertyCatcher.getBehavior(LocalVariableBehavior.GLOBAL),
+        SystemPropertyCatcher.isLazy(false));
+    SystemPropertyCatcher.setClassLoader(container);
+    SystemPropertyCatcher.setConfiguration(container);
+    return CONSTRUCTOR.newInstance(container, FACTORY);
+  }
+}
@@ -0,0 +1,424 @@
+package com.livingsocial.hive.utils;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.script.Invocable;
+import javax.script.ScriptException;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+
+/**
+ * Runs scripts written in Java.  The script is the body of a class, optionally
+ * preceded by import statements, and every public method in it is a function
+ * (evaluate, iterate, merge, ...).  The script is compiled with the JDK's
+ * compiler and loaded in its own class loader, then a second generated class
+ * holds one ScriptFunction per method that calls it directly, so the per row
+ * cost is a plain virtual call instead of reflection.  The compiled classes
+ * are kept in memory, nothing is left on local disk, and each script is only
+ * compiled once per JVM: later engines for it define the same class bytes
+ * in a class loader of their own, so static fields aren't shared.
+ *
+ * Arguments are cast to the declared parameter types, numeric parameters take
+ * any java.lang.Number.  Primitive parameters can't take a NULL, the call
+ * fails naming the parameter, so use the boxed types where NULLs are
+ * expected.  Method names have to be unique.
+ */
+public class JavaSourceEngine implements Invocable {
+
+  private static final Charset UTF8 = Charset.forName("UTF8");
+
+  // Class bytes of each compiled script by name
+  private static final ConcurrentHashMap<String, Compiled> COMPILED = new ConcurrentHashMap<String, Compiled>();
+
+  private static class Compiled {
+    final String scriptClass;
+    final String functionsClass;
+    final Set<String> methods;
+    final Map<String, byte[]> classes;
+
+    Compiled(String scriptClass, String functionsClass, Set<String> methods, Map<String, byte[]> classes) {
+      this.scriptClass = scriptClass;
+      this.functionsClass = functionsClass;
+      this.methods = methods;
+      this.classes = classes;
+    }
+  }
+
+  private final Object script;
+  private final Map<String, ScriptFunction> functions;
+
+  private JavaSourceEngine(Object script, Map<String, ScriptFunction> functions) {
+    this.script = script;
+    this.functions = functions;
+  }
+
+  public boolean hasFunction(String name) {
+    return functions.containsKey(name);
+  }
+
+  /**
+   * Returns the direct function for name, or null if the script doesn't define it
+   */
+  public ScriptFunction function(String name) {
+    return functions.get(name);
+  }
+
+  @Override
+  public Object invokeFunction(String name, Object... args) throws ScriptException, NoSuchMethodException {
+    ScriptFunction function = functions.get(name);
+    if (function == null) {
+      throw new NoSuchMethodException(name);
+    }
+    try {
+      return function.call(args);
+    } catch (Exception e) {
+      throw new ScriptException(e);
+    }
+  }
+
+  @Override
+  public Object invokeMethod(Object thiz, String name, Object... args) throws ScriptException, NoSuchMethodException {
+    if (thiz != script) {
+      throw new IllegalArgumentException("Java scripts can only invoke methods of the script itself");
+    }
+    return invokeFunction(name, args);
+  }
+
+  @Override
+  public <T> T getInterface(Class<T> clasz) {
+    return getInterface(script, clasz);
+  }
+
+  @Override
+  public <T> T getInterface(Object thiz, Class<T> clasz) {
+    return clasz.isInstance(thiz) ? clasz.cast(thiz) : null;
+  }
+
+  /**
+   * Compiles the script, name is used to make the generated class names
+   * unique and has to be derived from the script content, it is also what
+   * the compiled classes are reused by.
+   */
+  public static JavaSourceEngine compile(String scriptText, String name) throws HiveException {
+    ClassLoader parent = Thread.currentThread().getContextClassLoader();
+    if (parent == null) {
+      parent = JavaSourceEngine.class.getClassLoader();
+    }
+    Compiled compiled = COMPILED.get(name);
+    if (compiled == null) {
+      compiled = javac(scriptText, name, parent);
+      COMPILED.putIfAbsent(name, compiled);
+    }
+
+    try {
+      BytesClassLoader loader = new BytesClassLoader(parent, compiled.classes);
+      Class<?> clasz = loader.loadClass(compiled.scriptClass);
+      Object script = clasz.newInstance();
+      Map<String, ScriptFunction> functions = new HashMap<String, ScriptFunction>();
+      for (String method : compiled.methods) {
+        Class<?> function = loader.loadClass(compiled.functionsClass + "$" + method);
+        functions.put(method, (ScriptFunction) function.getConstructor(clasz).newInstance(script));
+      }
+      return new JavaSourceEngine(script, functions);
+    } catch (Exception e) {
+      throw new HiveException("Unable to load the compiled java script", e);
+    }
+  }
+
+  private static Compiled javac(String scriptText, String name, ClassLoader parent) throws HiveException {
+    JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    if (compiler == null) {
+      throw new HiveException("The java language needs a JDK, no java compiler was found in " + System.getProperty("java.home"));
+    }
+
+    String scriptClass = "HiveSwarmScript_" + name;
+    String functionsClass = scriptClass + "_Functions";
+
+    File dir = null;
+    BytesClassLoader loader = new BytesClassLoader(parent, new HashMap<String, byte[]>());
+    try {
+      dir = File.createTempFile("hiveswarm-java-", "");
+      if (!dir.delete() || !dir.mkdir()) {
+        throw new HiveException("Unable to create a directory to compile the script in: " + dir);
+      }
+      String classpath = classpath(parent) + File.pathSeparator + dir.getPath();
+
+      // First the script itself, its public methods decide what the functions are
+      compile(compiler, dir, classpath, scriptClass, scriptSource(scriptText, scriptClass));
+      loader.addClasses(dir);
+      Class<?> clasz = loader.loadClass(scriptClass);
+
+      Map<String, Method> methods = new HashMap<String, Method>();
+      for (Method method : clasz.getDeclaredMethods()) {
+        if (!Modifier.isPublic(method.getModifiers())) {
+          continue;
+        }
+        if (methods.put(method.getName(), method) != null) {
+          throw new HiveException("Java scripts can't overload functions, " + method.getName() + " is defined more than once");
+        }
+      }
+
+      compile(compiler, dir, classpath, functionsClass, functionsSource(methods, scriptClass, functionsClass));
+      loader.addClasses(dir);
+      return new Compiled(scriptClass, functionsClass, new LinkedHashSet<String>(methods.keySet()), loader.classes);
+    } catch (HiveException e) {
+      throw e;
+    } catch (IOException e) {
+      throw new HiveException("Unable to compile the java script", e);
+    } catch (Exception e) {
+      throw new HiveException("Unable to load the compiled java script", e);
+    } finally {
+      if (dir != null) {
+        delete(dir);
+      }
+    }
+  }
+
+  private static void compile(JavaCompiler compiler, File dir, String classpath, String className, String source)
+      throws IOException, HiveException {
+    File sourceFile = new File(dir, className + ".java");
+    Writer writer = new OutputStreamWriter(new FileOutputStream(sourceFile), UTF8);
+    try {
+      writer.write(source);
+    } finally {
+      writer.close();
+    }
+
+    DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+    StandardJavaFileManager fileManager = compiler.getStandardFileManager(diagnostics, null, UTF8);
+    try {
+      Boolean ok = compiler.getTask(null, fileManager, diagnostics,
+          Arrays.asList("-classpath", classpath, "-d", dir.getPath(), "-nowarn"), null,
+          fileManager.getJavaFileObjects(sourceFile)).call();
+      if (!Boolean.TRUE.equals(ok)) {
+        StringBuilder errors = new StringBuilder();
+        for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+          if (diagnostic.getKind() == Diagnostic.Kind.ERROR) {
+            errors.append("\n  line ").append(diagnostic.getLineNumber()).append(": ").append(diagnostic.getMessage(null));
+          }
+        }
+        throw new HiveException("The java script didn't compile:" + errors);
+      }
+    } finally {
+      fileManager.close();
+    }
+  }
+
+  /**
+   * Wraps the class body in a class declaration, leading import statements
+   * are kept in front of it.
+   */
+  static String scriptSource(String scriptText, String className) {
+    StringBuilder imports = new StringBuilder();
+    String body = scriptText.trim();
+    while (body.startsWith("import ") || body.startsWith("import\t")) {
+      int end = body.indexOf(';');
+      if (end < 0) {
+        break;
+      }
+      imports.append(body, 0, end + 1).append('\n');
+      body = body.substring(end + 1).trim();
+    }
+    StringBuilder source = new StringBuilder();
+    source.append(imports);
+    source.append("public class ").append(className).append(" { ");
+    source.append(body);
+    source.append("\n}\n");
+    return source.toString();
+  }
+
+  static String functionsSource(Map<String, Method> methods, String scriptClass, String functionsClass) {
+    StringBuilder source = new StringBuilder();
+    source.append("public class ").append(functionsClass).append(" {\n");
+    for (Method method : methods.values()) {
+      source.append("  public static final class ").append(method.getName())
+          .append(" extends ").append(ScriptFunction.class.getName()).append(" {\n");
+      source.append("    private final ").append(scriptClass).append(" script;\n");
+      source.append("    public ").append(method.getName()).append("(").append(scriptClass).append(" script) { this.script = script; }\n");
+      source.append("    public Object call(Object... a) throws Exception {\n");
+      source.append("      if (a.length != ").append(method.getParameterTypes().length).append(") throw new IllegalArgumentException(\"")
+          .append(method.getName()).append(" takes ").append(method.getParameterTypes().length).append(" arguments, got \" + a.length);\n");
+      nullChecks(source, method);
+      String call = "script." + method.getName() + "(" + arguments(method.getParameterTypes()) + ")";
+      if (method.getReturnType() == Void.TYPE) {
+        source.append("      ").append(call).append(";\n      return null;\n");
+      } else {
+        source.append("      return ").append(call).append(";\n");
+      }
+      source.append("    }\n  }\n");
+    }
+    source.append("}\n");
+    return source.toString();
+  }
+
+  // Unboxing a NULL would be a bare NullPointerException
+  private static void nullChecks(StringBuilder source, Method method) {
+    Class<?>[] types = method.getParameterTypes();
+    for (int i = 0; i < types.length; i++) {
+      if (types[i].isPrimitive()) {
+        source.append("      if (a[").append(i).append("] == null) throw new ").append(HiveException.class.getName())
+            .append("(\"").append(method.getName()).append(" got NULL for parameter ").append(i + 1).append(", a ")
+            .append(types[i].getName()).append(", declare it as a ").append(boxed(types[i]))
+            .append(" to take NULLs\");\n");
+      }
+    }
+  }
+
+  private static String boxed(Class<?> type) {
+    if (type == Integer.TYPE) {
+      return "Integer";
+    } else if (type == Character.TYPE) {
+      return "Character";
+    }
+    String name = type.getName();
+    return Character.toUpperCase(name.charAt(0)) + name.substring(1);
+  }
+
+  private static String arguments(Class<?>[] types) {
+    StringBuilder rtn = new StringBuilder();
+    for (int i = 0; i < types.length; i++) {
+      if (i > 0) {
+        rtn.append(", ");
+      }
+      String arg = "a[" + i + "]";
+      Class<?> type = types[i];
+      if (type == Boolean.TYPE) {
+        rtn.append("((Boolean) ").append(arg).append(").booleanValue()");
+      } else if (type == Character.TYPE) {
+        rtn.append("((Character) ").append(arg).append(").charValue()");
+      } else if (type.isPrimitive()) {
+        rtn.append("((Number) ").append(arg).append(").").append(type.getName()).append("Value()");
+      } else if (type == Object.class) {
+        rtn.append(arg);
+      } else {
+        rtn.append("(").append(type.getCanonicalName()).append(") ").append(arg);
+      }
+    }
+    return rtn.toString();
+  }
+
+  /**
+   * Class path for compiling scripts, the JVM's plus any jars added to the
+   * session (add jar ...) through the context class loader.
+   */
+  private static String classpath(ClassLoader loader) {
+    Set<String> entries = new LinkedHashSet<String>();
+    for (ClassLoader l = loader; l != null; l = l.getParent()) {
+      if (l instanceof URLClassLoader) {
+        for (URL url : ((URLClassLoader) l).getURLs()) {
+          if ("file".equals(url.getProtocol())) {
+            entries.add(file(url).getPath());
+          }
+        }
+      }
+    }
+    entries.addAll(Arrays.asList(System.getProperty("java.class.path").split(File.pathSeparator)));
+    // The jar holding ScriptFunction, in case it was loaded some other way
+    URL self = ScriptFunction.class.getProtectionDomain().getCodeSource().getLocation();
+    if ("file".equals(self.getProtocol())) {
+      entries.add(file(self).getPath());
+    }
+
+    StringBuilder rtn = new StringBuilder();
+    for (String entry : entries) {
+      if (rtn.length() > 0) {
+        rtn.append(File.pathSeparator);
+      }
+      rtn.append(entry);
+    }
+    return rtn.toString();
+  }
+
+  // getPath leaves spaces and the like escaped
+  private static File file(URL url) {
+    try {
+      return new File(url.toURI());
+    } catch (URISyntaxException e) {
+      return new File(url.getPath());
+    } catch (IllegalArgumentException e) {
+      return new File(url.getPath());
+    }
+  }
+
+  /**
+   * Defines the compiled classes from memory, so the compile directory can go
+   */
+  private static class BytesClassLoader extends ClassLoader {
+    private final Map<String, byte[]> classes;
+
+    BytesClassLoader(ClassLoader parent, Map<String, byte[]> classes) {
+      super(parent);
+      this.classes = classes;
+    }
+
+    void addClasses(File dir) throws IOException {
+      File[] files = dir.listFiles();
+      if (files == null) {
+        return;
+      }
+      for (File file : files) {
+        String fileName = file.getName();
+        if (fileName.endsWith(".class")) {
+          String className = fileName.substring(0, fileName.length() - ".class".length());
+          if (!classes.containsKey(className)) {
+            classes.put(className, readFully(file));
+          }
+        }
+      }
+    }
+
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+      byte[] bytes = classes.get(name);
+      if (bytes == null) {
+        throw new ClassNotFoundException(name);
+      }
+      return defineClass(name, bytes, 0, bytes.length);
+    }
+
+    private static byte[] readFully(File file) throws IOException {
+      byte[] bytes = new byte[(int) file.length()];
+      DataInputStream in = new DataInputStream(new FileInputStream(file));
+      try {
+        in.readFully(bytes);
+      } finally {
+        in.close();
+      }
+      return bytes;
+    }
+  }
+
+  private static void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+}
@@ -14,6 +14,7 @@ import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
 import org.apache.hadoop.hive.serde2.objectinspector.ListObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector.PrimitiveCategory;
 import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector.PrimitiveCategory.*;
@@ -39,18 +40,26 @@ public class KISSInspector {
 	return PrimitiveObjectInspectorFactory.getPrimitiveJavaObjectInspector(getCategory());
     }
 
+    // Strings are parsed as dates, straight from the Text bytes when the inspector has them
+    private long toTimestamp(Object value) {
+	if(inspector.preferWritable()) {
+	    return Utils.stringToTimestamp(((StringObjectInspector) inspector).getPrimitiveWritableObject(value));
+	}
+	return Utils.stringToTimestamp((String) get(value));
+    }
+
     public Object get(Object value) {
 	return inspector.getPrimitiveJavaObject(value);
     }
 
     public float toFloat(Object value) {
 	float result;
+	if(getCategory() == PrimitiveCategory.STRING) {
+	    long timestamp = toTimestamp(value);
+	    return (timestamp < 0) ? 0L : (float) timestamp;
+	}
 	value = get(value);
 	switch(getCategory()) {
-	case STRING:
-	    long timestamp = Utils.stringToTimestamp((String) value);
-	    result = (timestamp < 0) ? 0L : (new Long(timestamp)).floatValue();
-	    break;
 	case BOOLEAN:
 	    result = ((Boolean) value).booleanValue() ? 1.0f : 0.0f;
 	    break;
@@ -69,12 +78,12 @@ public class KISSInspector {
 
     public long toLong(Object value) {
 	long result;
+	if(getCategory() == PrimitiveCategory.STRING) {
+	    long timestamp = toTimestamp(value);
+	    return (timestamp < 0) ? 0L : timestamp;
+	}
 	value = get(value);
 	switch(getCategory()) {
-	case STRING:
-	    long timestamp = Utils.stringToTimestamp((String) value);
-	    result = (timestamp < 0) ? 0L : (new Long(timestamp)).longValue();
-	    break;
 	case BOOLEAN:
 	    result = ((Boolean) value).booleanValue() ? 1L : 0L;
 	    break;
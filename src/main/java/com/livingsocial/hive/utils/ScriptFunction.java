@@ -0,0 +1,25 @@
+package com.livingsocial.hive.utils;
+
+import javax.script.Invocable;
+
+/**
+ * A function defined by a script, looked up once so the per row calls can go
+ * straight to it.  Java scripts hand out generated subclasses that call the
+ * compiled method directly, other languages go through Invocable.
+ */
+public abstract class ScriptFunction {
+
+  public abstract Object call(Object... args) throws Exception;
+
+  /**
+   * Function calling name through the engine's invokeFunction
+   */
+  public static ScriptFunction invocable(final Invocable engine, final String name) {
+    return new ScriptFunction() {
+      @Override
+      public Object call(Object... args) throws Exception {
+        return engine.invokeFunction(name, args);
+      }
+    };
+  }
+}
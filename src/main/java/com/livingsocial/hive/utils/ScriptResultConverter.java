@@ -0,0 +1,291 @@
+package com.livingsocial.hive.utils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.hive.serde2.typeinfo.ListTypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.MapTypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.PrimitiveTypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.StructTypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfoUtils;
+
+/**
+ * Converts the objects scripts return into the standard java objects of the
+ * declared return type.
+ *
+ * The converter tree is built once from the return type string, so per row
+ * there is no type dispatch left.  Script collections (ruby arrays and hashes
+ * show up as java.util.List and java.util.Map) are read directly and the
+ * output lists and maps are reused from one row to the next, so the result is
+ * only valid until the next call to convert.
+ */
+public abstract class ScriptResultConverter {
+
+  private Object lastOutput;
+
+  /**
+   * Converts a script result, reusing the containers of the previous result
+   */
+  public Object convert(Object value) {
+    lastOutput = convert(value, lastOutput);
+    return lastOutput;
+  }
+
+  /**
+   * Converts value, reuse is the output previously produced by this converter
+   * at the same position (or null) and may be refilled and returned.
+   */
+  abstract Object convert(Object value, Object reuse);
+
+  public static ScriptResultConverter build(String returnType) {
+    return build(TypeInfoUtils.getTypeInfoFromTypeString(returnType));
+  }
+
+  public static ScriptResultConverter build(TypeInfo type) {
+    switch (type.getCategory()) {
+    case PRIMITIVE:
+      return primitive((PrimitiveTypeInfo) type);
+    case LIST:
+      return new ListConverter(build(((ListTypeInfo) type).getListElementTypeInfo()));
+    case MAP:
+      MapTypeInfo mapType = (MapTypeInfo) type;
+      return new MapConverter(build(mapType.getMapKeyTypeInfo()), build(mapType.getMapValueTypeInfo()));
+    case STRUCT:
+      StructTypeInfo structType = (StructTypeInfo) type;
+      List<TypeInfo> fieldTypes = structType.getAllStructFieldTypeInfos();
+      ScriptResultConverter[] fields = new ScriptResultConverter[fieldTypes.size()];
+      for (int i = 0; i < fields.length; i++) {
+        fields[i] = build(fieldTypes.get(i));
+      }
+      return new StructConverter(structType.getAllStructFieldNames().toArray(new String[fields.length]), fields);
+    default:
+      return new IdentityConverter();
+    }
+  }
+
+  private static ScriptResultConverter primitive(PrimitiveTypeInfo type) {
+    switch (type.getPrimitiveCategory()) {
+    case STRING:
+      return new StringConverter();
+    case BOOLEAN:
+      return new BooleanConverter();
+    case BYTE:
+      return new ByteConverter();
+    case SHORT:
+      return new ShortConverter();
+    case INT:
+      return new IntConverter();
+    case LONG:
+      return new LongConverter();
+    case FLOAT:
+      return new FloatConverter();
+    case DOUBLE:
+      return new DoubleConverter();
+    default:
+      // timestamps, binary, decimals, ... are expected to already be the right java type
+      return new IdentityConverter();
+    }
+  }
+
+  private static List<?> asList(Object value) {
+    if (value instanceof List) {
+      return (List<?>) value;
+    }
+    if (value instanceof Object[]) {
+      return java.util.Arrays.asList((Object[]) value);
+    }
+    throw new IllegalArgumentException("Expected a list from the script, got a " + value.getClass().getName());
+  }
+
+  private static final class ListConverter extends ScriptResultConverter {
+    private final ScriptResultConverter element;
+
+    ListConverter(ScriptResultConverter element) {
+      this.element = element;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    Object convert(Object value, Object reuse) {
+      if (value == null) {
+        return null;
+      }
+      List<?> in = asList(value);
+      ArrayList<Object> out = reuse instanceof ArrayList ? (ArrayList<Object>) reuse : new ArrayList<Object>(in.size());
+
+      int size = in.size();
+      int reused = Math.min(size, out.size());
+      for (int i = 0; i < reused; i++) {
+        out.set(i, element.convert(in.get(i), out.get(i)));
+      }
+      for (int i = reused; i < size; i++) {
+        out.add(element.convert(in.get(i), null));
+      }
+      while (out.size() > size) {
+        out.remove(out.size() - 1);
+      }
+      return out;
+    }
+  }
+
+  private static final class MapConverter extends ScriptResultConverter {
+    private final ScriptResultConverter key;
+    private final ScriptResultConverter value;
+
+    MapConverter(ScriptResultConverter key, ScriptResultConverter value) {
+      this.key = key;
+      this.value = value;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    Object convert(Object in, Object reuse) {
+      if (in == null) {
+        return null;
+      }
+      if (!(in instanceof Map)) {
+        throw new IllegalArgumentException("Expected a map from the script, got a " + in.getClass().getName());
+      }
+      HashMap<Object, Object> out;
+      if (reuse instanceof HashMap) {
+        out = (HashMap<Object, Object>) reuse;
+        out.clear();
+      } else {
+        out = new HashMap<Object, Object>();
+      }
+      for (Map.Entry<?, ?> entry : ((Map<?, ?>) in).entrySet()) {
+        out.put(key.convert(entry.getKey(), null), value.convert(entry.getValue(), null));
+      }
+      return out;
+    }
+  }
+
+  private static final class StructConverter extends ScriptResultConverter {
+    private final String[] names;
+    private final ScriptResultConverter[] fields;
+
+    StructConverter(String[] names, ScriptResultConverter[] fields) {
+      this.names = names;
+      this.fields = fields;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    Object convert(Object value, Object reuse) {
+      if (value == null) {
+        return null;
+      }
+      ArrayList<Object> out;
+      if (reuse instanceof ArrayList && ((ArrayList<Object>) reuse).size() == fields.length) {
+        out = (ArrayList<Object>) reuse;
+      } else {
+        out = new ArrayList<Object>(fields.length);
+        for (int i = 0; i < fields.length; i++) {
+          out.add(null);
+        }
+      }
+
+      if (value instanceof Map) {
+        // fields by name
+        Map<?, ?> in = (Map<?, ?>) value;
+        for (int i = 0; i < fields.length; i++) {
+          out.set(i, fields[i].convert(in.get(names[i]), out.get(i)));
+        }
+      } else {
+        // fields by position
+        List<?> in = asList(value);
+        for (int i = 0; i < fields.length; i++) {
+          out.set(i, fields[i].convert(i < in.size() ? in.get(i) : null, out.get(i)));
+        }
+      }
+      return out;
+    }
+  }
+
+  private static final class IdentityConverter extends ScriptResultConverter {
+    @Override
+    Object convert(Object value, Object reuse) {
+      return value;
+    }
+  }
+
+  private static final class StringConverter extends ScriptResultConverter {
+    @Override
+    Object convert(Object value, Object reuse) {
+      return value == null ? null : value.toString();
+    }
+  }
+
+  private static final class BooleanConverter extends ScriptResultConverter {
+    @Override
+    Object convert(Object value, Object reuse) {
+      if (value == null || value instanceof Boolean) {
+        return value;
+      }
+      if (value instanceof Number) {
+        return ((Number) value).longValue() != 0;
+      }
+      return Boolean.valueOf(value.toString().trim());
+    }
+  }
+
+  /**
+   * Numbers come back from scripts as whatever width the language uses, or
+   * sometimes as strings, this gets them to the declared width.
+   */
+  private static abstract class NumberConverter extends ScriptResultConverter {
+    abstract Object fromNumber(Number value);
+    abstract Object fromString(String value);
+
+    @Override
+    Object convert(Object value, Object reuse) {
+      if (value == null) {
+        return null;
+      }
+      if (value instanceof Number) {
+        return fromNumber((Number) value);
+      }
+      if (value instanceof Boolean) {
+        return fromNumber(((Boolean) value).booleanValue() ? 1 : 0);
+      }
+      try {
+        return fromString(value.toString().trim());
+      } catch (NumberFormatException e) {
+        return null;
+      }
+    }
+  }
+
+  private static final class ByteConverter extends NumberConverter {
+    Object fromNumber(Number value) { return value.byteValue(); }
+    Object fromString(String value) { return Byte.valueOf(value); }
+  }
+
+  private static final class ShortConverter extends NumberConverter {
+    Object fromNumber(Number value) { return value.shortValue(); }
+    Object fromString(String value) { return Short.valueOf(value); }
+  }
+
+  private static final class IntConverter extends NumberConverter {
+    Object fromNumber(Number value) { return value.intValue(); }
+    Object fromString(String value) { return Integer.valueOf(value); }
+  }
+
+  private static final class LongConverter extends NumberConverter {
+    Object fromNumber(Number value) { return value.longValue(); }
+    Object fromString(String value) { return Long.valueOf(value); }
+  }
+
+  private static final class FloatConverter extends NumberConverter {
+    Object fromNumber(Number value) { return value.floatValue(); }
+    Object fromString(String value) { return Float.valueOf(value); }
+  }
+
+  private static final class DoubleConverter extends NumberConverter {
+    Object fromNumber(Number value) { return value.doubleValue(); }
+    Object fromString(String value) { return Double.valueOf(value); }
+  }
+}
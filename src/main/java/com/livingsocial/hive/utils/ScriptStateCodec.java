@@ -0,0 +1,315 @@
+package com.livingsocial.hive.utils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.script.Invocable;
+import javax.script.ScriptEngine;
+import javax.script.ScriptException;
+
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * Turns the aggregation state of a scripted UDAF into bytes and back for the
+ * partial aggregation.
+ *
+ * Scripts that define serialize(agg) and deserialize(bytes) are in charge of
+ * their own format.  serialize has to return a java byte array, ruby strings
+ * (like Marshal.dump's) don't survive the trip to java as bytes.  Scripts
+ * that define convert_to_string and convert_from_string have their strings
+ * stored as UTF-8, ruby binary strings are refused.  Everything else uses a
+ * compact tagged binary format that handles nil, booleans, integers (big
+ * ones included), floats, BigDecimals, strings, byte arrays, lists and maps;
+ * those states come back to the script as java.util.ArrayList and
+ * java.util.HashMap.  Other kinds of numbers fail rather than being rounded
+ * to a double.
+ */
+public abstract class ScriptStateCodec {
+
+  private static final Charset UTF8 = Charset.forName("UTF8");
+
+  protected final DataOutputBuffer output = new DataOutputBuffer();
+
+  /**
+   * Encodes state, the result is valid in getData()/getLength() until the
+   * next call.
+   */
+  public abstract void encode(Object state) throws HiveException;
+
+  public abstract Object decode(byte[] bytes, int offset, int length) throws HiveException;
+
+  public byte[] getData() {
+    return output.getData();
+  }
+
+  public int getLength() {
+    return output.getLength();
+  }
+
+  /**
+   * Picks the codec for the script loaded in engine
+   */
+  public static ScriptStateCodec forScript(Invocable engine) {
+    if (ScriptingHelper.hasFunction(engine, "serialize") && ScriptingHelper.hasFunction(engine, "deserialize")) {
+      return new ScriptCodec(engine);
+    }
+    if (ScriptingHelper.hasFunction(engine, "convert_to_string") && ScriptingHelper.hasFunction(engine, "convert_from_string")) {
+      return new StringCodec(engine);
+    }
+    return new DefaultCodec();
+  }
+
+  private static final class ScriptCodec extends ScriptStateCodec {
+    private final Invocable engine;
+
+    ScriptCodec(Invocable engine) {
+      this.engine = engine;
+    }
+
+    @Override
+    public void encode(Object state) throws HiveException {
+      Object out;
+      try {
+        out = engine.invokeFunction("serialize", state);
+      } catch (Exception e) {
+        throw new HiveException("Error invoking the serialize function", e);
+      }
+      // Ruby strings reach java already decoded to a String, which loses any
+      // bytes that aren't valid in the string's encoding
+      if (!(out instanceof byte[])) {
+        throw new HiveException("serialize has to return a byte array (to_java_bytes in ruby), got "
+            + (out == null ? "nil" : out.getClass().getName()));
+      }
+      byte[] bytes = (byte[]) out;
+      output.reset();
+      try {
+        output.write(bytes);
+      } catch (IOException e) {
+        throw new HiveException(e);
+      }
+    }
+
+    @Override
+    public Object decode(byte[] bytes, int offset, int length) throws HiveException {
+      byte[] in = new byte[length];
+      System.arraycopy(bytes, offset, in, 0, length);
+      try {
+        return engine.invokeFunction("deserialize", (Object) in);
+      } catch (Exception e) {
+        throw new HiveException("Error invoking the deserialize function", e);
+      }
+    }
+  }
+
+  private static final class StringCodec extends ScriptStateCodec {
+    // JRuby hands binary strings to java as one char per byte, which can't be
+    // told apart from text once it's a java String, so ruby checks first
+    private static final String RUBY_GUARD = "hiveswarm_convert_to_string";
+    private static final String RUBY_GUARD_SCRIPT =
+        "def " + RUBY_GUARD + "(agg)\n" +
+        "  s = convert_to_string(agg)\n" +
+        "  if s.is_a?(String) && !(s.valid_encoding? && (s.encoding != Encoding::BINARY || s.ascii_only?))\n" +
+        "    raise ArgumentError, 'convert_to_string returned binary data, define serialize and deserialize with to_java_bytes instead'\n" +
+        "  end\n" +
+        "  s\n" +
+        "end";
+
+    private final Invocable engine;
+    private final String function;
+
+    StringCodec(Invocable engine) {
+      this.engine = engine;
+      this.function = defineRubyGuard(engine) ? RUBY_GUARD : "convert_to_string";
+    }
+
+    private static boolean defineRubyGuard(Invocable engine) {
+      if (!(engine instanceof ScriptEngine)
+          || !((ScriptEngine) engine).getFactory().getLanguageName().toLowerCase().contains("ruby")) {
+        return false;
+      }
+      try {
+        ((ScriptEngine) engine).eval(RUBY_GUARD_SCRIPT);
+        return true;
+      } catch (ScriptException e) {
+        return false;
+      }
+    }
+
+    @Override
+    public void encode(Object state) throws HiveException {
+      Object out;
+      try {
+        out = engine.invokeFunction(function, state);
+      } catch (Exception e) {
+        throw new HiveException("Error invoking the convert_to_string function", e);
+      }
+      if (!(out instanceof CharSequence)) {
+        throw new HiveException("convert_to_string has to return a string, got "
+            + (out == null ? "nil" : out.getClass().getName()));
+      }
+      output.reset();
+      try {
+        output.write(out.toString().getBytes(UTF8));
+      } catch (IOException e) {
+        throw new HiveException(e);
+      }
+    }
+
+    @Override
+    public Object decode(byte[] bytes, int offset, int length) throws HiveException {
+      try {
+        return engine.invokeFunction("convert_from_string", new String(bytes, offset, length, UTF8));
+      } catch (Exception e) {
+        throw new HiveException("Error invoking the convert_from_string function", e);
+      }
+    }
+  }
+
+  private static final class DefaultCodec extends ScriptStateCodec {
+    private static final byte NULL = 0;
+    private static final byte TRUE = 1;
+    private static final byte FALSE = 2;
+    private static final byte LONG = 3;
+    private static final byte DOUBLE = 4;
+    private static final byte STRING = 5;
+    private static final byte BYTES = 6;
+    private static final byte LIST = 7;
+    private static final byte MAP = 8;
+    private static final byte BIG_INTEGER = 9;
+    private static final byte BIG_DECIMAL = 10;
+
+    private final DataInputBuffer input = new DataInputBuffer();
+
+    @Override
+    public void encode(Object state) throws HiveException {
+      output.reset();
+      try {
+        write(output, state);
+      } catch (IOException e) {
+        throw new HiveException(e);
+      }
+    }
+
+    @Override
+    public Object decode(byte[] bytes, int offset, int length) throws HiveException {
+      input.reset(bytes, offset, length);
+      try {
+        return read(input);
+      } catch (IOException e) {
+        throw new HiveException("Unable to read the aggregation state", e);
+      }
+    }
+
+    private static void write(DataOutput out, Object value) throws IOException, HiveException {
+      if (value == null) {
+        out.writeByte(NULL);
+      } else if (value instanceof Boolean) {
+        out.writeByte(((Boolean) value).booleanValue() ? TRUE : FALSE);
+      } else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+        out.writeByte(LONG);
+        WritableUtils.writeVLong(out, ((Number) value).longValue());
+      } else if (value instanceof Double || value instanceof Float) {
+        out.writeByte(DOUBLE);
+        out.writeDouble(((Number) value).doubleValue());
+      } else if (value instanceof BigInteger) {
+        // Ruby Bignums
+        out.writeByte(BIG_INTEGER);
+        writeBytes(out, ((BigInteger) value).toByteArray());
+      } else if (value instanceof BigDecimal) {
+        BigDecimal decimal = (BigDecimal) value;
+        out.writeByte(BIG_DECIMAL);
+        WritableUtils.writeVInt(out, decimal.scale());
+        writeBytes(out, decimal.unscaledValue().toByteArray());
+      } else if (value instanceof CharSequence) {
+        out.writeByte(STRING);
+        Text.writeString(out, value.toString());
+      } else if (value instanceof byte[]) {
+        out.writeByte(BYTES);
+        writeBytes(out, (byte[]) value);
+      } else if (value instanceof List) {
+        List<?> list = (List<?>) value;
+        out.writeByte(LIST);
+        WritableUtils.writeVInt(out, list.size());
+        for (Object element : list) {
+          write(out, element);
+        }
+      } else if (value instanceof Map) {
+        Map<?, ?> map = (Map<?, ?>) value;
+        out.writeByte(MAP);
+        WritableUtils.writeVInt(out, map.size());
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+          write(out, entry.getKey());
+          write(out, entry.getValue());
+        }
+      } else {
+        throw new HiveException("Don't know how to store a " + value.getClass().getName()
+            + " in the aggregation state, define serialize and deserialize functions in the script");
+      }
+    }
+
+    private static void writeBytes(DataOutput out, byte[] bytes) throws IOException {
+      WritableUtils.writeVInt(out, bytes.length);
+      out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInput in) throws IOException {
+      byte[] bytes = new byte[WritableUtils.readVInt(in)];
+      in.readFully(bytes);
+      return bytes;
+    }
+
+    private static Object read(DataInput in) throws IOException {
+      byte tag = in.readByte();
+      switch (tag) {
+      case NULL:
+        return null;
+      case TRUE:
+        return Boolean.TRUE;
+      case FALSE:
+        return Boolean.FALSE;
+      case LONG:
+        return WritableUtils.readVLong(in);
+      case DOUBLE:
+        return in.readDouble();
+      case STRING:
+        return Text.readString(in);
+      case BYTES:
+        return readBytes(in);
+      case BIG_INTEGER:
+        return new BigInteger(readBytes(in));
+      case BIG_DECIMAL:
+        int scale = WritableUtils.readVInt(in);
+        return new BigDecimal(new BigInteger(readBytes(in)), scale);
+      case LIST:
+        int size = WritableUtils.readVInt(in);
+        ArrayList<Object> list = new ArrayList<Object>(size);
+        for (int i = 0; i < size; i++) {
+          list.add(read(in));
+        }
+        return list;
+      case MAP:
+        int entries = WritableUtils.readVInt(in);
+        HashMap<Object, Object> map = new HashMap<Object, Object>(entries * 2);
+        for (int i = 0; i < entries; i++) {
+          Object key = read(in);
+          map.put(key, read(in));
+        }
+        return map;
+      default:
+        throw new IOException("Unknown tag " + tag + " in the aggregation state");
+      }
+    }
+  }
+}
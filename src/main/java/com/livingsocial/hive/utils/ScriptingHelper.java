@@ -1,17 +1,32 @@
 package com.livingsocial.hive.utils;
 
-import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
 
+import javax.script.Compilable;
+import javax.script.CompiledScript;
 import javax.script.Invocable;
 import javax.script.ScriptEngine;
 import javax.script.ScriptEngineManager;
 import javax.script.ScriptException;
 
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hive.ql.exec.MapredContext;
 import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
 import org.apache.hadoop.hive.ql.metadata.HiveException;
 import org.apache.hadoop.hive.ql.parse.SemanticException;
@@ -25,9 +40,26 @@ import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectIn
 import org.apache.hadoop.hive.serde2.typeinfo.TypeInfoUtils;
 
 public class ScriptingHelper {
+
+  private static final Log LOG = LogFactory.getLog(ScriptingHelper.class.getName());
 	
 	// Offset to get past the constants in the arg list
 	private static int ARG_OFFSET = 3;
+
+  private static final Charset UTF8 = Charset.forName("UTF8");
+
+  /**
+   * How arguments are handed to scripts: 'lazy' passes views that convert
+   * values as the script reads them, 'copy' passes full copies, which scripts
+   * that keep references to their arguments past the call need.
+   */
+  public static final String ARGUMENTS_MODE = "hiveswarm.script.arguments";
+
+  /**
+   * Language name for scripts written in Java, see JavaSourceEngine
+   */
+  public static final String JAVA = "java";
+
   
   public static class InitializationContainer {
     public String script;
@@ -38,52 +70,110 @@ public class ScriptingHelper {
     public ObjectInspector outputOi;
     public ObjectInspector outputJavaOi;
     public GenericUDFUtils.ReturnObjectInspectorResolver returnOIResolver;
+    public ScriptResultConverter outputConverter;
     
     public int argOffset = ARG_OFFSET;
+    // Only there once getEngine was called
     public Invocable engine;
+
+    public boolean copyArguments;
+
+    /**
+     * Returns the engine with the script loaded, taking one from the pool on
+     * the first call.  initialize only checks the script, so query
+     * compilation doesn't pay for starting an engine that would never run
+     * anything.
+     */
+    public Invocable getEngine() throws HiveException {
+      if (engine == null) {
+        engine = initializeEngine(language, script, this);
+      }
+      return engine;
+    }
+
+    /**
+     * Hands the engine back to the pool, functions call this from close()
+     */
+    public void close() throws HiveException {
+      if (engine != null) {
+        releaseEngine(language, script, engine);
+        engine = null;
+      }
+    }
+
+    /**
+     * Converts the i'th script argument for handing it to the script
+     */
+    public Object scriptArgument(int i, Object data) {
+      if (copyArguments) {
+        return ObjectInspectorUtils.copyToStandardJavaObject(data, argumentOIs[i]);
+      }
+      return ArgumentViews.view(data, argumentOIs[i]);
+    }
     
   }
   
   public static InitializationContainer initialize(ObjectInspector[] arguments)
       throws SemanticException {
 
-    InitializationContainer rtn = new InitializationContainer();
-    
-    if (arguments != null) {
-      // Only validate inputs if this is the main call, for merging and terminating this step is not needed.
-
-      // Nothing else can really be validated until evaluation time
-      if (arguments.length < rtn.argOffset+1) {
-        throw new SemanticException(
-            "At least " + (rtn.argOffset+1) + " arguments are required, the script to run, the script language, the return type, and at least one argument, got "
-                + arguments.length + " arguments passed in");
-      }
-
-      // Convert all the constant string params
-      rtn.script = getConstString(arguments[0], 1);
-      rtn.language = getConstString(arguments[1], 2);
-      rtn.returnType = getConstString(arguments[2], 3);
-      
-      // Get converters for all the actual arguments
-      rtn.argumentOIs = new ObjectInspector[arguments.length - rtn.argOffset];
-      System.arraycopy(arguments, rtn.argOffset, rtn.argumentOIs, 0, rtn.argumentOIs.length);
-
-      rtn.outputOi = javaObjectInspectorFromType(rtn.returnType);
-      rtn.outputJavaOi = javaObjectInspectorFromType(rtn.returnType);
-      rtn.returnOIResolver = buildReturnResolver(rtn.outputOi);
-      
+    // Nothing else can really be validated until evaluation time
+    if (arguments.length < ARG_OFFSET+1) {
+      throw new SemanticException(
+          "At least " + (ARG_OFFSET+1) + " arguments are required, the script to run, the script language, the return type, and at least one argument, got "
+              + arguments.length + " arguments passed in");
     }
-    
+
+    // Convert all the constant string params
+    InitializationContainer rtn = initialize(
+        getConstString(arguments[0], 1), getConstString(arguments[1], 2), getConstString(arguments[2], 3));
+
+    // Get converters for all the actual arguments
+    rtn.argumentOIs = new ObjectInspector[arguments.length - rtn.argOffset];
+    System.arraycopy(arguments, rtn.argOffset, rtn.argumentOIs, 0, rtn.argumentOIs.length);
+
+    return rtn;
+  }
+
+  /**
+   * Sets up everything that only depends on the constant script arguments.
+   * This is all that's needed for merging and terminating aggregations, where
+   * the original arguments are no longer around.
+   */
+  public static InitializationContainer initialize(String script, String language, String returnType)
+      throws SemanticException {
+
+    InitializationContainer rtn = new InitializationContainer();
+    rtn.script = script;
+    rtn.language = language;
+    rtn.returnType = returnType;
+
+    rtn.outputOi = javaObjectInspectorFromType(rtn.returnType);
+    rtn.outputJavaOi = javaObjectInspectorFromType(rtn.returnType);
+    rtn.returnOIResolver = buildReturnResolver(rtn.outputOi);
+    rtn.outputConverter = ScriptResultConverter.build(rtn.returnType);
+
     // Do this to test the script and make sure it's valid client-side
     try {
-			rtn.engine = initializeEngine(rtn.language, rtn.script);
-		} catch (HiveException e) {
-			throw new SemanticException("The Script or Language settings seem to have problems: " + e, e);
-		}
-    
+      validateScript(rtn.language, rtn.script);
+    } catch (HiveException e) {
+      throw new SemanticException("The Script or Language settings seem to have problems: " + e, e);
+    }
+
     return rtn;
   }
 
+  /**
+   * Reads ARGUMENTS_MODE from the job configuration, conf can be null when
+   * running outside of a map reduce task.
+   */
+  public static boolean copyArguments(Configuration conf, boolean defaultCopy) {
+    String mode = conf == null ? null : conf.get(ARGUMENTS_MODE);
+    if (mode == null) {
+      return defaultCopy;
+    }
+    return "copy".equalsIgnoreCase(mode.trim());
+  }
+
 	public static String getConstString(ObjectInspector argument, int num)
 			throws UDFArgumentTypeException {
 		if (!ObjectInspectorUtils.isConstantObjectInspector(argument)) {
@@ -116,65 +206,417 @@ public class ScriptingHelper {
     return output != null ? ObjectInspectorConverters.getConverter(oi, output) : null;
   }
 
+  // Pools of engines with a script loaded, shared by every scripted function in this JVM
+  private static final ConcurrentHashMap<String, EnginePool> ENGINE_POOLS = new ConcurrentHashMap<String, EnginePool>();
+
   /**
-   * Builds an invocable scripting engine using the passed in args.
-   * This loads and compiles the script so the functions are available
-   * in the returned Invocable engine.
+   * Returns an invocable scripting engine for the passed in args, with the
+   * script loaded and compiled so the functions are available, leased to
+   * owner.  Engines are pooled by language and script content, so asking for
+   * the same script again (another task in a reused JVM, another query)
+   * returns an already warmed up engine.  The engine should be handed back
+   * with releaseEngine once the caller is done with it, otherwise it goes
+   * back to the pool when owner is garbage collected.
    */
-  public static Invocable initializeEngine(String language, String script) throws HiveException {
-    
-    // Make sure we can find a scripting engine for the language
-    ScriptEngine tmp = new ScriptEngineManager().getEngineByName(language);
-    if (tmp == null) {
-      throw new HiveException(
-          "Could not find a script implementation for language " + language);
+  public static Invocable initializeEngine(String language, String script, Object owner) throws HiveException {
+    return enginePool(language, script).acquire(owner);
+  }
+
+  public static void releaseEngine(String language, String script, Invocable engine) throws HiveException {
+    enginePool(language, script).release(engine);
+  }
+
+  private static EnginePool enginePool(String language, String script) throws HiveException {
+    String scriptText = loadScript(script);
+    String key = language + ":" + hashScript(scriptText);
+
+    EnginePool pool = ENGINE_POOLS.get(key);
+    if (pool != null) {
+      return pool;
+    }
+    synchronized (ENGINE_POOLS) {
+      pool = ENGINE_POOLS.get(key);
+      if (pool == null) {
+        Configuration conf = getConf();
+        pool = new EnginePool(language, scriptText,
+            conf.getInt(EnginePool.MAX_ENGINES, Runtime.getRuntime().availableProcessors()),
+            conf.getLong(EnginePool.IDLE_MILLIS, EnginePool.DEFAULT_IDLE_MILLIS));
+        ENGINE_POOLS.put(key, pool);
+      }
     }
+    return pool;
+  }
 
-    if (!(tmp instanceof Invocable)) {
-      throw new HiveException("The script engine for " + language
-          + " doesn't support invocable");
+  // Scripts known to be valid, by language and script hash
+  private static final ConcurrentHashMap<String, Boolean> VALIDATED = new ConcurrentHashMap<String, Boolean>();
+
+  // One engine per language that only ever parses, shared by every validation
+  private static final ConcurrentHashMap<String, ScriptEngine> PARSERS = new ConcurrentHashMap<String, ScriptEngine>();
+
+  /**
+   * Checks that the language is available and the script is syntactically
+   * valid without running it.  Results are remembered by script hash in the
+   * JVM and in the local script cache directory, so the same script isn't
+   * checked again by later queries on the same machine.  Tasks skip the
+   * check, the query was validated when it was compiled and the task builds
+   * the engine it needs right after anyway.
+   */
+  public static void validateScript(String language, String script) throws HiveException {
+    if (MapredContext.get() != null) {
+      return;
+    }
+    String scriptText = loadScript(script);
+    String key = language + ":" + hashScript(scriptText);
+    if (VALIDATED.containsKey(key)) {
+      return;
     }
 
-    Invocable engine = (Invocable) tmp;
+    File marker = new File(scriptCacheDir(getConf()),
+        language.replaceAll("[^A-Za-z0-9]", "_") + "-" + hashScript(scriptText) + ".valid");
+    if (!marker.isFile()) {
+      parseScript(language, scriptText);
+      if (marker.getParentFile().isDirectory() || marker.getParentFile().mkdirs()) {
+        writeLocal(marker, new byte[0]);
+      }
+    }
+    VALIDATED.put(key, Boolean.TRUE);
+  }
 
-    String scriptText;
-    if (script.startsWith("/")) {
-      // The file is a file in HDFS
+  private static void parseScript(String language, String scriptText) throws HiveException {
+    if (JAVA.equalsIgnoreCase(language)) {
+      // Compiling is the check, and it only takes the JDK compiler
+      JavaSourceEngine.compile(scriptText, hashScript(scriptText));
+      return;
+    }
 
-      // Note: this is not the best way to do this, but it works
-      Configuration conf = new Configuration();
-      String root = conf.get("fs.defaultFS");
-      String path = root + script;
+    String key = language.toLowerCase();
+    ScriptEngine parser = PARSERS.get(key);
+    if (parser == null) {
+      parser = newScriptEngine(language);
+      ScriptEngine existing = PARSERS.putIfAbsent(key, parser);
+      if (existing != null) {
+        parser = existing;
+      }
+    }
+    synchronized (parser) {
       try {
-        FileSystem fs = FileSystem.get(conf);
-        Path scriptFile = new Path(path);
-        BufferedReader reader = new BufferedReader(new InputStreamReader(
-            fs.open(scriptFile)));
-        String line = null;
-        StringBuilder scriptBuilder = new StringBuilder();
-        while ((line = reader.readLine()) != null) {
-          scriptBuilder.append(line);
-          scriptBuilder.append("\n");
+        if (parser instanceof Compilable) {
+          // Compiling parses the script without running any of it
+          ((Compilable) parser).compile(scriptText);
+        } else {
+          // Nothing to parse with but a throwaway engine
+          newScriptEngine(language).eval(scriptText);
         }
-        scriptText = scriptBuilder.toString();
-      } catch (IOException e) {
+      } catch (ScriptException e) {
         throw new HiveException(
-            "Unable to load the script from file " + script, e);
+            "Something went wrong with the script when parsing it", e);
       }
-    } else {
+    }
+  }
+
+  /**
+   * Checks whether the script loaded in the engine defines a function with
+   * the given name.  javax.script has no portable way to ask this, so it uses
+   * the language's own introspection where known and falls back to the
+   * engine bindings otherwise.
+   */
+  public static boolean hasFunction(Invocable engine, String name) {
+    if (engine instanceof JavaSourceEngine) {
+      return ((JavaSourceEngine) engine).hasFunction(name);
+    }
+    ScriptEngine scriptEngine = (ScriptEngine) engine;
+    String languageName = scriptEngine.getFactory().getLanguageName().toLowerCase();
+    try {
+      Object found;
+      if (languageName.contains("ruby")) {
+        found = scriptEngine.eval("respond_to?(:" + name + ", true)");
+      } else if (languageName.contains("script")) {
+        // ECMAScript / JavaScript engines
+        found = scriptEngine.eval("typeof " + name + " === 'function'");
+      } else {
+        found = scriptEngine.get(name) != null;
+      }
+      return Boolean.TRUE.equals(found);
+    } catch (ScriptException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Looks up a function of the script for calling it repeatedly.  Java
+   * scripts return a function calling the compiled method directly.
+   */
+  public static ScriptFunction function(Invocable engine, String name) {
+    if (engine instanceof JavaSourceEngine) {
+      ScriptFunction rtn = ((JavaSourceEngine) engine).function(name);
+      if (rtn != null) {
+        return rtn;
+      }
+    }
+    return ScriptFunction.invocable(engine, name);
+  }
+
+  /**
+   * Returns the text of the script, reading it from HDFS when the script
+   * argument is an absolute path.  HDFS scripts go through a cache on local
+   * disk shared by every task on the node (see SCRIPT_CACHE_DIR), and the
+   * file status is remembered for STATUS_MILLIS, so most loads don't ask the
+   * NameNode anything.
+   */
+  public static String loadScript(String script) throws HiveException {
+    if (!script.startsWith("/")) {
       // The script is a literal script and should be handled directly
-      scriptText = script;
+      return script;
+    }
+
+    // The file is a file in HDFS
+    Configuration conf = getConf();
+    try {
+      FileSystem fs = FileSystem.get(conf);
+      Path scriptFile = fs.makeQualified(new Path(script));
+      FileStatus status = scriptStatus(fs, scriptFile);
+
+      // The same path and version always maps to the same cache entry
+      String version = hashScript(scriptFile + "\u0000" + status.getModificationTime() + "\u0000" + status.getLen());
+      String text = LOADED_SCRIPTS.get(version);
+      if (text == null) {
+        text = cachedScript(fs, scriptFile, status, version, scriptCacheDir(conf));
+        LOADED_SCRIPTS.put(version, text);
+      }
+      return text;
+    } catch (IOException e) {
+      throw new HiveException(
+          "Unable to load the script from file " + script, e);
+    }
+  }
+
+  /**
+   * Directory on local disk for HDFS hosted scripts.  Scripts are stored by
+   * the SHA-1 of their content, next to small files mapping an HDFS path,
+   * modification time and length to the content hash.  Defaults to
+   * hiveswarm-scripts under hadoop.tmp.dir, which every task on a node
+   * shares; java.io.tmpdir is a per container directory under YARN.
+   */
+  public static final String SCRIPT_CACHE_DIR = "hiveswarm.script.cache.dir";
+  private static final String SCRIPT_CACHE_NAME = "hiveswarm-scripts";
+
+  // How long a script's file status is trusted before asking the NameNode again
+  private static final long STATUS_MILLIS = 60 * 1000L;
+
+  // Script text by path version, so a JVM reads each version at most once
+  private static final ConcurrentHashMap<String, String> LOADED_SCRIPTS = new ConcurrentHashMap<String, String>();
+
+  // Last file status of each HDFS script path
+  private static final ConcurrentHashMap<Path, CheckedStatus> SCRIPT_STATUS = new ConcurrentHashMap<Path, CheckedStatus>();
+
+  private static class CheckedStatus {
+    final FileStatus status;
+    final long checked;
+
+    CheckedStatus(FileStatus status, long checked) {
+      this.status = status;
+      this.checked = checked;
+    }
+  }
+
+  private static FileStatus scriptStatus(FileSystem fs, Path scriptFile) throws IOException {
+    long now = System.currentTimeMillis();
+    CheckedStatus cached = SCRIPT_STATUS.get(scriptFile);
+    if (cached != null && now - cached.checked < STATUS_MILLIS) {
+      return cached.status;
+    }
+    FileStatus status = fs.getFileStatus(scriptFile);
+    SCRIPT_STATUS.put(scriptFile, new CheckedStatus(status, now));
+    return status;
+  }
+
+  static File scriptCacheDir(Configuration conf) {
+    String dir = conf.get(SCRIPT_CACHE_DIR);
+    if (dir != null) {
+      return new File(dir);
+    }
+    String hadoopTmp = conf.get("hadoop.tmp.dir");
+    return new File(hadoopTmp != null ? hadoopTmp : System.getProperty("java.io.tmpdir"), SCRIPT_CACHE_NAME);
+  }
+
+  private static volatile Configuration conf;
+
+  /**
+   * Hands the task's configuration to the helper, scripted functions call
+   * this from configure(MapredContext) so loading scripts doesn't have to
+   * build a fresh Configuration.
+   */
+  public static void configure(Configuration taskConf) {
+    if (taskConf != null) {
+      conf = taskConf;
+    }
+  }
+
+  private static Configuration getConf() {
+    if (conf == null) {
+      // Query compilation, where there is no task configuration
+      conf = new Configuration();
+    }
+    return conf;
+  }
+
+  private static String cachedScript(FileSystem fs, Path scriptFile, FileStatus status, String version, File cacheDir)
+      throws IOException {
+    File ref = new File(cacheDir, version + ".ref");
+    if (ref.isFile()) {
+      String contentHash = new String(readLocal(ref), UTF8).trim();
+      File content = new File(cacheDir, contentHash + ".script");
+      if (content.isFile()) {
+        byte[] bytes = readLocal(content);
+        // Partially written or damaged files fall through to a fresh copy
+        if (contentHash.equals(Hex.encodeHexString(sha1(bytes)))) {
+          return new String(bytes, UTF8);
+        }
+      }
+    }
+
+    byte[] bytes = new byte[(int) status.getLen()];
+    FSDataInputStream in = fs.open(scriptFile);
+    try {
+      in.readFully(0, bytes);
+    } finally {
+      in.close();
+    }
+
+    String contentHash = Hex.encodeHexString(sha1(bytes));
+    if (cacheDir.isDirectory() || cacheDir.mkdirs()) {
+      writeLocal(new File(cacheDir, contentHash + ".script"), bytes);
+      writeLocal(ref, contentHash.getBytes(UTF8));
+    } else {
+      LOG.warn("Unable to create the script cache directory " + cacheDir);
+    }
+    return new String(bytes, UTF8);
+  }
+
+  private static byte[] readLocal(File file) throws IOException {
+    FileInputStream in = new FileInputStream(file);
+    try {
+      FileChannel channel = in.getChannel();
+      ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+      while (buffer.hasRemaining()) {
+        if (channel.read(buffer) < 0) {
+          throw new IOException("Unexpected end of " + file);
+        }
+      }
+      return buffer.array();
+    } finally {
+      in.close();
     }
+  }
+
+  /**
+   * Writes next to the target and renames it into place, so tasks reading
+   * the cache concurrently never see a partial file
+   */
+  private static void writeLocal(File file, byte[] bytes) {
+    try {
+      File tmp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+      FileOutputStream out = new FileOutputStream(tmp);
+      try {
+        FileChannel channel = out.getChannel();
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+          channel.write(buffer);
+        }
+      } finally {
+        out.close();
+      }
+      if (!tmp.renameTo(file)) {
+        tmp.delete();
+      }
+    } catch (IOException e) {
+      // The cache is only an optimization
+      LOG.warn("Unable to write " + file + " to the script cache", e);
+    }
+  }
+
+  /**
+   * Hex encoded SHA-1 of the script text, used to recognize the same script
+   */
+  public static String hashScript(String scriptText) {
+    return Hex.encodeHexString(sha1(scriptText));
+  }
+
+  /**
+   * Short identifier of a script, the first 8 bytes of the SHA-1 of the
+   * language and script text.
+   */
+  public static long fingerprint(String language, String scriptText) {
+    byte[] hash = sha1(language + "\u0000" + scriptText);
+    long rtn = 0;
+    for (int i = 0; i < 8; i++) {
+      rtn = (rtn << 8) | (hash[i] & 0xff);
+    }
+    return rtn;
+  }
 
+  private static byte[] sha1(String text) {
+    return sha1(text.getBytes(UTF8));
+  }
+
+  private static byte[] sha1(byte[] bytes) {
     try {
-      tmp.eval(scriptText);
+      MessageDigest md = MessageDigest.getInstance("SHA1");
+      return md.digest(bytes);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA1 is not setup", e);
+    }
+  }
+
+  static Invocable buildEngine(String language, String scriptText) throws HiveException {
+    if (JAVA.equalsIgnoreCase(language)) {
+      return JavaSourceEngine.compile(scriptText, hashScript(scriptText));
+    }
+
+    ScriptEngine tmp = newScriptEngine(language);
+    try {
+      if (tmp instanceof Compilable) {
+        // Engines that can compile get to skip re-parsing the script later on
+        CompiledScript compiled = ((Compilable) tmp).compile(scriptText);
+        compiled.eval();
+      } else {
+        tmp.eval(scriptText);
+      }
     } catch (ScriptException e) {
       throw new HiveException(
           "Something went wrong with the script when evaluating it", e);
     }
 
-    return engine;
+    return (Invocable) tmp;
+  }
+
+  private static ScriptEngine newScriptEngine(String language) throws HiveException {
+    ScriptEngine tmp = null;
+    if (language.toLowerCase().contains("ruby")) {
+      // Pooled engines need a runtime each, which the JSR 223 lookup won't give
+      try {
+        tmp = JRubyEngines.newEngine();
+      } catch (Exception e) {
+        LOG.warn("Unable to build a JRuby engine with its own runtime, falling back to the shared one", e);
+      } catch (LinkageError e) {
+        LOG.warn("Unable to build a JRuby engine with its own runtime, falling back to the shared one", e);
+      }
+    }
 
+    // Make sure we can find a scripting engine for the language
+    if (tmp == null) {
+      tmp = new ScriptEngineManager().getEngineByName(language);
+    }
+    if (tmp == null) {
+      throw new HiveException(
+          "Could not find a script implementation for language " + language);
+    }
+
+    if (!(tmp instanceof Invocable)) {
+      throw new HiveException("The script engine for " + language
+          + " doesn't support invocable");
+    }
+    return tmp;
   }
 
 }